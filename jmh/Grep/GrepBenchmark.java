@@ -0,0 +1,134 @@
+package Grep;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// search throughput of every matcher engine on synthetic corpora, with read and mmap (flag 'm') input.
+// the corpus is searched from the page cache, so the numbers are matcher cost, not disk speed.
+// one operation is one search of the whole corpus, the megabytes counter gives MB/s.
+//
+// usage : ./gradlew jmh --args='Grep.GrepBenchmark -p engine=twoway,horspool'
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GrepBenchmark {
+
+    private static final String[] LOG_LEVELS = {"INFO", "INFO", "INFO", "DEBUG", "WARN"};
+
+    // corpus/keyword : frequent, one line in a hundred, never present and long keywords on a log,
+    // short and long keywords on dna. MultiKeywordGrepBenchmark has the several keyword searches
+    @Param({"log/INFO", "log/ERROR", "log/Zq9#", "log/connection reset by peer while reading",
+            "dna/GATTACA", "dna/ACGTACGTACGTACGTACGTTTGA"})
+    public String query;
+
+    // auto is the engine Matcher.forKeywords picks by itself
+    @Param({"auto", "kmp", "filter", "horspool", "twoway", "ahocorasick"})
+    public String engine;
+
+    @Param({"read", "mmap"})
+    public String input;
+
+    @Param("64")
+    public int corpusSizeInMB;
+
+    private Path corpus;
+    private Grep.MatchingCriteriaDetails matchingCriteriaDetails;
+
+    // MB searched, reported per second next to the searches per second
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Megabytes {
+        public double megabytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            megabytes = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        String corpusName = query.substring(0, query.indexOf('/'));
+        String keyword = query.substring(query.indexOf('/') + 1);
+        corpus = writeCorpus(corpusName, corpusSizeInMB);
+        matchingCriteriaDetails = new Grep.MatchingCriteriaDetails(new String[]{keyword}, input.equals("mmap") ? "-m" : "-", 1,
+                engine.equals("auto") ? null : engine);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        if (matchingCriteriaDetails != null)
+            matchingCriteriaDetails.close();
+        if (corpus != null)
+            Files.deleteIfExists(corpus);
+    }
+
+    @Benchmark
+    public void search(Megabytes megabytes, Blackhole blackhole) throws IOException {
+        search(matchingCriteriaDetails, corpus, megabytes, blackhole);
+    }
+
+    static void search(Grep.MatchingCriteriaDetails matchingCriteriaDetails, Path corpus, Megabytes megabytes,
+                       Blackhole blackhole) throws IOException {
+        MatchList matches = new MatchList();
+        try (FileChannel fileChannel = FileChannel.open(corpus, StandardOpenOption.READ)) {
+            Grep.matchingFromFileRange(matchingCriteriaDetails, fileChannel, 0, fileChannel.size(), matches);
+            blackhole.consume(matches.size());
+            megabytes.megabytes += fileChannel.size() / (double) (1 << 20);
+        }
+    }
+
+    static Path writeCorpus(String corpusName, int sizeInMB) throws IOException {
+        Path corpus = Files.createTempFile("grep-benchmark-" + corpusName, ".txt");
+        if (corpusName.equals("dna"))
+            writeDnaCorpus(corpus, (long) sizeInMB << 20);
+        else
+            writeLogCorpus(corpus, (long) sizeInMB << 20);
+        return corpus;
+    }
+
+    private static void writeLogCorpus(Path file, long size) throws IOException {
+        Random random = new Random(1);
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file))) {
+            long written = 0;
+            for (int line = 0; written < size; line++) {
+                String level = (line % 100 == 0) ? "ERROR" : LOG_LEVELS[random.nextInt(LOG_LEVELS.length)];
+                String text = "2024-03-" + (10 + line % 20) + " 12:" + (10 + line % 50) + ":" + (10 + random.nextInt(50)) + " " + level
+                        + " request id=" + random.nextInt(1000000) + " user=" + random.nextInt(100000)
+                        + " GET /api/v1/items/" + random.nextInt(5000) + " took " + random.nextInt(900) + "ms\n";
+                byte[] bytes = text.getBytes();
+                out.write(bytes);
+                written += bytes.length;
+            }
+        }
+    }
+
+    // four letter alphabet, the worst case for skip based engines
+    private static void writeDnaCorpus(Path file, long size) throws IOException {
+        Random random = new Random(2);
+        byte[] alphabet = "ACGT".getBytes();
+        byte[] line = new byte[81];
+        line[80] = '\n';
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file))) {
+            for (long written = 0; written < size; written += line.length) {
+                for (int i = 0; i < 80; i++) {
+                    line[i] = alphabet[random.nextInt(4)];
+                }
+                out.write(line);
+            }
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package Grep;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+// one pass over the log corpus of GrepBenchmark for many keywords at once, only aho-corasick takes several keywords.
+//
+// usage : ./gradlew jmh --args='MultiKeywordGrepBenchmark'
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MultiKeywordGrepBenchmark {
+
+    @Param({"ERROR|WARN", "ERROR|WARN|timeout|refused|Zq9#|user=42|deadlock|OutOfMemoryError|retry|GET /health"})
+    public String keywords;
+
+    @Param({"read", "mmap"})
+    public String input;
+
+    @Param("64")
+    public int corpusSizeInMB;
+
+    private Path corpus;
+    private Grep.MatchingCriteriaDetails matchingCriteriaDetails;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        corpus = GrepBenchmark.writeCorpus("log", corpusSizeInMB);
+        matchingCriteriaDetails = new Grep.MatchingCriteriaDetails(keywords.split("\\|"), input.equals("mmap") ? "-m" : "-", 1, null);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        if (matchingCriteriaDetails != null)
+            matchingCriteriaDetails.close();
+        if (corpus != null)
+            Files.deleteIfExists(corpus);
+    }
+
+    @Benchmark
+    public void search(GrepBenchmark.Megabytes megabytes, Blackhole blackhole) throws IOException {
+        GrepBenchmark.search(matchingCriteriaDetails, corpus, megabytes, blackhole);
+    }
+}
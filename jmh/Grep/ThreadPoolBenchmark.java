@@ -0,0 +1,79 @@
+package Grep;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.*;
+
+// task handoff cost of MyThreadPoolExecutorVersion1 (queue and work stealing mode) and
+// MyThreadPoolExecutorVersion2 against java.util.concurrent.ThreadPoolExecutor.
+//   throughput : many small tasks kept in flight, tasks per second
+//   roundTrip  : one task at a time, submit to completion seen by the caller, ns per task
+//
+// usage : ./gradlew jmh --args='ThreadPoolBenchmark -p threads=1,16'
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ThreadPoolBenchmark {
+
+    private static final int TASKS_PER_INVOCATION = 10000;
+    // stays below the capacity of the bounded queue of MyThreadPoolExecutorVersion2
+    private static final int TASKS_IN_FLIGHT = 64;
+
+    @Param({"version1", "version1-workstealing", "version2", "jdk"})
+    public String pool;
+
+    @Param({"1", "2", "4", "8"})
+    public int threads;
+
+    private ExecutorService executorService;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        switch (pool) {
+            case "version1":
+                executorService = new MyThreadPoolExecutorVersion1(threads);
+                break;
+            case "version1-workstealing":
+                executorService = new MyThreadPoolExecutorVersion1(threads, true);
+                break;
+            case "version2":
+                executorService = new MyThreadPoolExecutorVersion2(threads, threads, 60, TimeUnit.SECONDS);
+                break;
+            case "jdk":
+                executorService = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+                break;
+            default:
+                throw new IllegalArgumentException("unknown pool " + pool);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        executorService.shutdown();
+        if (!executorService.awaitTermination(1, TimeUnit.MINUTES))
+            throw new IllegalStateException(pool + " did not terminate");
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(TASKS_PER_INVOCATION)
+    public void throughput() throws InterruptedException {
+        Semaphore inFlight = new Semaphore(TASKS_IN_FLIGHT);
+        for (int i = 0; i < TASKS_PER_INVOCATION; i++) {
+            inFlight.acquire();
+            executorService.execute(inFlight::release);
+        }
+        inFlight.acquire(TASKS_IN_FLIGHT);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public void roundTrip() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        executorService.execute(done::countDown);
+        done.await();
+    }
+}
@@ -0,0 +1,77 @@
+package collection_framework;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// the put, get and mixed operations of MapBenchmark on MyConcurrentHashMap and ConcurrentHashMap shared by
+// several threads. jmh sets the number of benchmark threads itself, so the thread count is -t rather than a @Param.
+//
+// usage : ./gradlew jmh --args='ConcurrentMapBenchmark -t 8 -p distribution=zipf'
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class ConcurrentMapBenchmark {
+
+    @Param({"MyConcurrentHashMap", "ConcurrentHashMap"})
+    public String map;
+
+    @Param({"uniform", "zipf"})
+    public String distribution;
+
+    private Map<Integer, Integer> growingMap;
+    private Map<Integer, Integer> filledMap;
+
+    @State(Scope.Thread)
+    public static class KeyIndexes {
+        private static final AtomicInteger nextSeed = new AtomicInteger();
+
+        int[] indexes;
+        int position;
+
+        @Setup(Level.Trial)
+        public void setUp(ConcurrentMapBenchmark benchmark) {
+            indexes = MapBenchmark.draw(benchmark.distribution, new Random(100 + nextSeed.getAndIncrement()));
+        }
+
+        int next() {
+            return indexes[position++ & (MapBenchmark.INDEXES_PER_THREAD - 1)];
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void fill() {
+        filledMap = MapBenchmark.newFilledMap(map);
+    }
+
+    @Setup(Level.Iteration)
+    public void empty() {
+        growingMap = MapBenchmark.newMap(map);
+    }
+
+    @Benchmark
+    public Integer put(KeyIndexes keyIndexes) {
+        int index = keyIndexes.next();
+        return growingMap.put(MapBenchmark.KEYS[index], index);
+    }
+
+    @Benchmark
+    public Integer get(KeyIndexes keyIndexes) {
+        return filledMap.get(MapBenchmark.KEYS[keyIndexes.next()]);
+    }
+
+    @Benchmark
+    public Integer mixed(KeyIndexes keyIndexes) {
+        int index = keyIndexes.next();
+        if (keyIndexes.position % MapBenchmark.PUT_EVERY == 0)
+            return filledMap.put(MapBenchmark.KEYS[index], index);
+        return filledMap.get(MapBenchmark.KEYS[index]);
+    }
+}
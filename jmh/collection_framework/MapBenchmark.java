@@ -0,0 +1,152 @@
+package collection_framework;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// get and put throughput of MyHashMap and MyOpenHashMap against HashMap on one thread, for uniform and zipf (hot key)
+// access patterns. ConcurrentMapBenchmark runs the same operations on several threads.
+//   put   : the map starts empty every iteration, so it covers inserts and resizes as well as updates
+//   get   : a map holding every key
+//   mixed : every tenth operation on the full map is a put
+//
+// usage : ./gradlew jmh --args='collection_framework.MapBenchmark -p distribution=zipf'
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(1)
+public class MapBenchmark {
+
+    static final int NUMBER_OF_KEYS = 1 << 16;
+    // indexes drawn per thread, used round robin
+    static final int INDEXES_PER_THREAD = 1 << 20;
+    static final int PUT_EVERY = 10;
+    private static final double ZIPF_EXPONENT = 0.99;
+
+    static final Integer[] KEYS = new Integer[NUMBER_OF_KEYS];
+    // cumulative zipf weight of the key ranks and the key of every rank
+    private static final double[] ZIPF_CUMULATIVE = new double[NUMBER_OF_KEYS];
+    private static final int[] KEY_OF_RANK = new int[NUMBER_OF_KEYS];
+
+    static {
+        Random random = new Random(1);
+        for (int i = 0; i < NUMBER_OF_KEYS; i++) {
+            KEYS[i] = random.nextInt();
+        }
+
+        // key of rank r is drawn with probability proportional to 1 / r^ZIPF_EXPONENT, ranks are shuffled over the keys
+        double total = 0;
+        for (int rank = 0; rank < NUMBER_OF_KEYS; rank++) {
+            total += 1 / Math.pow(rank + 1, ZIPF_EXPONENT);
+            ZIPF_CUMULATIVE[rank] = total;
+        }
+        List<Integer> keyOfRank = new ArrayList<>();
+        for (int i = 0; i < NUMBER_OF_KEYS; i++) {
+            keyOfRank.add(i);
+        }
+        Collections.shuffle(keyOfRank, random);
+        for (int rank = 0; rank < NUMBER_OF_KEYS; rank++) {
+            KEY_OF_RANK[rank] = keyOfRank.get(rank);
+        }
+    }
+
+    @Param({"MyHashMap", "MyOpenHashMap", "HashMap", "MyConcurrentHashMap", "ConcurrentHashMap"})
+    public String map;
+
+    @Param({"uniform", "zipf"})
+    public String distribution;
+
+    private Map<Integer, Integer> growingMap;
+    private Map<Integer, Integer> filledMap;
+
+    // the key indexes one benchmark thread walks through, every thread draws its own
+    @State(Scope.Thread)
+    public static class KeyIndexes {
+        private static final AtomicInteger nextSeed = new AtomicInteger();
+
+        int[] indexes;
+        int position;
+
+        @Setup(Level.Trial)
+        public void setUp(MapBenchmark benchmark) {
+            indexes = draw(benchmark.distribution, new Random(100 + nextSeed.getAndIncrement()));
+        }
+
+        int next() {
+            return indexes[position++ & (INDEXES_PER_THREAD - 1)];
+        }
+    }
+
+    static Map<Integer, Integer> newMap(String name) {
+        switch (name) {
+            case "MyHashMap":
+                return new MyHashMap<>();
+            case "MyOpenHashMap":
+                return new MyOpenHashMap<>();
+            case "HashMap":
+                return new HashMap<>();
+            case "MyConcurrentHashMap":
+                return new MyConcurrentHashMap<>();
+            case "ConcurrentHashMap":
+                return new ConcurrentHashMap<>();
+            default:
+                throw new IllegalArgumentException("unknown map " + name);
+        }
+    }
+
+    static Map<Integer, Integer> newFilledMap(String name) {
+        Map<Integer, Integer> map = newMap(name);
+        for (int i = 0; i < NUMBER_OF_KEYS; i++) {
+            map.put(KEYS[i], i);
+        }
+        return map;
+    }
+
+    static int[] draw(String distribution, Random random) {
+        int[] indexes = new int[INDEXES_PER_THREAD];
+        for (int i = 0; i < INDEXES_PER_THREAD; i++) {
+            if (distribution.equals("zipf")) {
+                int rank = Arrays.binarySearch(ZIPF_CUMULATIVE, random.nextDouble() * ZIPF_CUMULATIVE[NUMBER_OF_KEYS - 1]);
+                indexes[i] = KEY_OF_RANK[rank >= 0 ? rank : Math.min(-rank - 1, NUMBER_OF_KEYS - 1)];
+            } else {
+                indexes[i] = random.nextInt(NUMBER_OF_KEYS);
+            }
+        }
+        return indexes;
+    }
+
+    @Setup(Level.Trial)
+    public void fill() {
+        filledMap = newFilledMap(map);
+    }
+
+    @Setup(Level.Iteration)
+    public void empty() {
+        growingMap = newMap(map);
+    }
+
+    @Benchmark
+    public Integer put(KeyIndexes keyIndexes) {
+        int index = keyIndexes.next();
+        return growingMap.put(KEYS[index], index);
+    }
+
+    @Benchmark
+    public Integer get(KeyIndexes keyIndexes) {
+        return filledMap.get(KEYS[keyIndexes.next()]);
+    }
+
+    @Benchmark
+    public Integer mixed(KeyIndexes keyIndexes) {
+        int index = keyIndexes.next();
+        if (keyIndexes.position % PUT_EVERY == 0)
+            return filledMap.put(KEYS[index], index);
+        return filledMap.get(KEYS[index]);
+    }
+}
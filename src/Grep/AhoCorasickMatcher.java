@@ -0,0 +1,109 @@
+package Grep;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// Aho-Corasick automaton, finds all keywords in one pass over the text.
+// the failure function is the multi keyword version of the KMP prefix table, it is folded
+// into a full transition table so every byte costs one lookup
+class AhoCorasickMatcher implements Matcher {
+
+    private static final int ALPHABET_SIZE = 256;
+
+    private int[] keywordLengths;
+    private int maxKeywordLen;
+    // transitions[state * ALPHABET_SIZE + byte]
+    private int[] transitions;
+    // index of the keyword ending at a state or -1
+    private int[] keywordAtState;
+    // nearest state on the failure chain, the state itself included, where a keyword ends or -1
+    private int[] firstOutput;
+    // next state after s on the failure chain of s where a keyword ends or -1
+    private int[] dictionaryLink;
+
+    AhoCorasickMatcher(byte[][] keywords) {
+        keywordLengths = new int[keywords.length];
+        int maxStates = 1;
+        for (int k = 0; k < keywords.length; k++) {
+            keywordLengths[k] = keywords[k].length;
+            maxKeywordLen = Math.max(maxKeywordLen, keywords[k].length);
+            maxStates += keywords[k].length;
+        }
+
+        // trie, missing edges are -1
+        transitions = new int[maxStates * ALPHABET_SIZE];
+        Arrays.fill(transitions, -1);
+        keywordAtState = new int[maxStates];
+        Arrays.fill(keywordAtState, -1);
+        int numberOfStates = 1;
+        for (int k = 0; k < keywords.length; k++) {
+            int state = 0;
+            for (byte b : keywords[k]) {
+                int edge = state * ALPHABET_SIZE + (b & 0xFF);
+                if (transitions[edge] == -1)
+                    transitions[edge] = numberOfStates++;
+                state = transitions[edge];
+            }
+            if (keywordAtState[state] == -1)
+                keywordAtState[state] = k;
+        }
+
+        // breadth first, failure links of shallower states are ready when a state is reached
+        int[] failure = new int[numberOfStates];
+        firstOutput = new int[numberOfStates];
+        dictionaryLink = new int[numberOfStates];
+        int[] queue = new int[numberOfStates];
+        int head = 0;
+        int tail = 0;
+
+        dictionaryLink[0] = -1;
+        firstOutput[0] = -1;
+        for (int c = 0; c < ALPHABET_SIZE; c++) {
+            int next = transitions[c];
+            if (next == -1) {
+                transitions[c] = 0;
+            } else {
+                failure[next] = 0;
+                queue[tail++] = next;
+            }
+        }
+        while (head < tail) {
+            int state = queue[head++];
+            dictionaryLink[state] = firstOutput[failure[state]];
+            firstOutput[state] = (keywordAtState[state] != -1) ? state : dictionaryLink[state];
+            for (int c = 0; c < ALPHABET_SIZE; c++) {
+                int edge = state * ALPHABET_SIZE + c;
+                int next = transitions[edge];
+                int fallback = transitions[failure[state] * ALPHABET_SIZE + c];
+                if (next == -1) {
+                    transitions[edge] = fallback;
+                } else {
+                    failure[next] = fallback;
+                    queue[tail++] = next;
+                }
+            }
+        }
+        transitions = Arrays.copyOf(transitions, numberOfStates * ALPHABET_SIZE);
+    }
+
+    @Override
+    public int search(ByteBuffer text, int from, int ownedEnd, int limit, int lineNumber, MatchList matches) {
+        int scanEnd = Math.min(ownedEnd + maxKeywordLen - 1, limit);
+        int newlineCount = 0;
+        int state = 0;
+        for (int i = from; i < scanEnd; i++) {
+            byte b = text.get(i);
+            state = transitions[state * ALPHABET_SIZE + (b & 0xFF)];
+
+            for (int output = firstOutput[state]; output != -1; output = dictionaryLink[output]) {
+                int keywordIndex = keywordAtState[output];
+                // matches starting after ownedEnd belong to the next range
+                if (i - keywordLengths[keywordIndex] + 1 < ownedEnd)
+                    matches.add(lineNumber + newlineCount, keywordIndex);
+            }
+            if (b == '\n')
+                newlineCount++;
+        }
+        return newlineCount - ByteSearchUtils.countNewlines(text, ownedEnd, scanEnd);
+    }
+}
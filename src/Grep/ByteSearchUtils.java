@@ -0,0 +1,52 @@
+package Grep;
+
+import java.nio.ByteBuffer;
+
+// SWAR (SIMD within a register) helpers, a long is treated as 8 lanes of one byte.
+// buffers passed here must use ByteOrder.LITTLE_ENDIAN so lane k is the byte at offset k
+final class ByteSearchUtils {
+
+    static final long LOW_BITS = 0x0101010101010101L;
+    static final long HIGH_BITS = 0x8080808080808080L;
+    static final long NEWLINES = broadcast((byte) '\n');
+
+    private ByteSearchUtils() {
+    }
+
+    static long broadcast(byte b) {
+        return (b & 0xFFL) * LOW_BITS;
+    }
+
+    // high bit of a lane is set exactly when that lane of word is zero
+    static long zeroByteMask(long word) {
+        long t = (word & ~HIGH_BITS) + ~HIGH_BITS;
+        return ~(t | word | ~HIGH_BITS);
+    }
+
+    // mask of lanes below lane k
+    static long lanesBelow(int k) {
+        return (1L << (k << 3)) - 1;
+    }
+
+    static int countNewlines(ByteBuffer text, int from, int to) {
+        int count = 0;
+        int i = from;
+        for (; i + 8 <= to; i += 8) {
+            count += Long.bitCount(zeroByteMask(text.getLong(i) ^ NEWLINES));
+        }
+        for (; i < to; i++) {
+            if (text.get(i) == '\n')
+                count++;
+        }
+        return count;
+    }
+
+    static int countNewlines(byte[] bytes, int from, int to) {
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            if (bytes[i] == '\n')
+                count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,107 @@
+package Grep;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+// skips to occurrences of the rarest byte of the keyword 8 bytes at a time,
+// newlines are counted in the same pass so every candidate knows its line number
+class CandidateFilter implements Matcher {
+
+    // bytes ordered from most to least common in text and log files, bytes not listed are considered rare
+    private static final String COMMON_BYTES = " \n\te" + "taoinsrhldcumfpgwybvkxjqz" + "0123456789" + ":.,-/_=\"'()[]"
+            + "ETAOINSRHLDCUMFPGWYBVKXJQZ";
+    private static final int[] BYTE_FREQUENCY_RANK = new int[256];
+    // keywords made only of whitespace are left to the KMP matcher
+    private static final int TOO_COMMON_RANK = COMMON_BYTES.length() - 2;
+    // bytes other than whitespace and lower case letters
+    private static final int UNCOMMON_RANK = COMMON_BYTES.length() - COMMON_BYTES.indexOf('z');
+
+    static {
+        for (int i = 0; i < COMMON_BYTES.length(); i++) {
+            BYTE_FREQUENCY_RANK[COMMON_BYTES.charAt(i)] = COMMON_BYTES.length() - i;
+        }
+    }
+
+    private byte[] keyword;
+    private int keywordLen;
+    private int rareByteOffset;
+    private long rareByteBroadcast;
+    // newlines in keyword[rareByteOffset, keywordLen-1), added to the line of the rare byte
+    private int newlinesAfterRareByte;
+
+    CandidateFilter(byte[] keyword) {
+        this.keyword = keyword;
+        this.keywordLen = keyword.length;
+        this.rareByteOffset = rarestByteOffset(keyword);
+        this.rareByteBroadcast = ByteSearchUtils.broadcast(keyword[rareByteOffset]);
+        this.newlinesAfterRareByte = ByteSearchUtils.countNewlines(keyword, rareByteOffset, keywordLen - 1);
+    }
+
+    // false if the keyword has no byte rare enough to skip on
+    static boolean isWorthFiltering(byte[] keyword) {
+        return BYTE_FREQUENCY_RANK[keyword[rarestByteOffset(keyword)] & 0xFF] < TOO_COMMON_RANK;
+    }
+
+    static boolean hasUncommonByte(byte[] keyword) {
+        return BYTE_FREQUENCY_RANK[keyword[rarestByteOffset(keyword)] & 0xFF] < UNCOMMON_RANK;
+    }
+
+    private static int rarestByteOffset(byte[] keyword) {
+        int rareByteOffset = 0;
+        for (int i = 1; i < keyword.length; i++) {
+            if (BYTE_FREQUENCY_RANK[keyword[i] & 0xFF] < BYTE_FREQUENCY_RANK[keyword[rareByteOffset] & 0xFF])
+                rareByteOffset = i;
+        }
+        return rareByteOffset;
+    }
+
+    @Override
+    public int search(ByteBuffer text, int from, int ownedEnd, int limit, int lineNumber, MatchList matches) {
+        text.order(ByteOrder.LITTLE_ENDIAN);
+
+        // the rare byte of a match starting at s is at s + rareByteOffset
+        int scanStart = from + rareByteOffset;
+        int scanEnd = Math.min(ownedEnd + rareByteOffset, limit);
+        if (scanStart >= scanEnd)
+            return ByteSearchUtils.countNewlines(text, from, ownedEnd);
+
+        int line = lineNumber + ByteSearchUtils.countNewlines(text, from, scanStart);
+        int i = scanStart;
+        for (; i + 8 <= scanEnd; i += 8) {
+            long word = text.getLong(i);
+            long newlineMask = ByteSearchUtils.zeroByteMask(word ^ ByteSearchUtils.NEWLINES);
+            long candidateMask = ByteSearchUtils.zeroByteMask(word ^ rareByteBroadcast);
+            while (candidateMask != 0) {
+                int k = Long.numberOfTrailingZeros(candidateMask) >>> 3;
+                int start = i + k - rareByteOffset;
+                if (start + keywordLen <= limit && verify(text, start)) {
+                    int candidateLine = line + Long.bitCount(newlineMask & ByteSearchUtils.lanesBelow(k));
+                    matches.add(candidateLine + newlinesAfterRareByte);
+                }
+                candidateMask &= candidateMask - 1;
+            }
+            line += Long.bitCount(newlineMask);
+        }
+        for (; i < scanEnd; i++) {
+            byte b = text.get(i);
+            if (b == keyword[rareByteOffset]) {
+                int start = i - rareByteOffset;
+                if (start + keywordLen <= limit && verify(text, start))
+                    matches.add(line + newlinesAfterRareByte);
+            }
+            if (b == '\n')
+                line++;
+        }
+
+        // the scan ran rareByteOffset bytes past ownedEnd
+        return line - lineNumber - ByteSearchUtils.countNewlines(text, ownedEnd, scanEnd);
+    }
+
+    private boolean verify(ByteBuffer text, int start) {
+        for (int j = 0; j < keywordLen; j++) {
+            if (text.get(start + j) != keyword[j])
+                return false;
+        }
+        return true;
+    }
+}
@@ -1,30 +1,91 @@
 package Grep;
 
+import Grep.ResultWriter.OutputSlot;
+
 import java.io.*;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Grep {
 
-    private static class MatchingCriteriaDetails {
-        private String keywordToSearch;
-        private byte[] keywordToSearchByteArray;
+    // with flag 'm' files of at least this size are memory mapped instead of read
+    private static final long MMAP_THRESHOLD = 1L << 20;
+    // a single mapping can not exceed 2 GB, bigger files are scanned window by window
+    private static final long MMAP_WINDOW_SIZE = 1L << 30;
+    // files bigger than this are split into chunks searched in parallel when more than one thread is used
+    private static final long PARALLEL_CHUNK_SIZE = 64L << 20;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    // files open at the same time with --virtual-threads when no limit is given
+    private static final int DEFAULT_MAX_OPEN_FILES = 1024;
+    // tasks waiting in the pool per thread, once they are taken the walker scans files itself instead of
+    // queueing a task per file of the tree
+    private static final int QUEUED_TASKS_PER_THREAD = 256;
+    // upper bound of --adaptive-threads when no limit is given, slow storage keeps many threads waiting on reads
+    private static final int DEFAULT_ADAPTIVE_MAXIMUM_THREADS = 4 * Runtime.getRuntime().availableProcessors();
+    private static final long ADAPTIVE_SAMPLE_PERIOD_MILLIS = 100;
+    private static final ThreadLocal<ResultBuffer> RESULT_BUFFER = ThreadLocal.withInitial(ResultBuffer::new);
+
+    static class MatchingCriteriaDetails {
+        private String[] keywordsToSearch;
+        private byte[][] keywordsToSearchByteArrays;
+        private int maxKeywordLength;
         private Set<Character> flags;
-        private int[] LPS;
+        private Matcher matcher;
         private int numberOfThreads;
         private ExecutorService executorService;
+        private AtomicInteger pendingTasks = new AtomicInteger(0);
+        private ResultWriter resultWriter;
+        // files the index proves to contain no keyword are not read, null without --index
+        private TrigramIndex trigramIndex;
+        // caps the files open at once when every task gets a thread of its own, null otherwise
+        private Semaphore openFiles;
+
+        MatchingCriteriaDetails(String[] keywordsToSearch,String flagStr,int numberOfThreads,String engineName) {
+            this(keywordsToSearch, flagStr, numberOfThreads, engineName, 0, 0);
+        }
 
-        MatchingCriteriaDetails(String keywordToSearch,String flagStr,int numberOfThreads) {
-            this.keywordToSearch = keywordToSearch;
-            this.keywordToSearchByteArray = keywordToSearch.getBytes();
+        // maxOpenFiles > 0 runs every task on a virtual thread instead of the pool of numberOfThreads,
+        // otherwise adaptiveMaximumThreads > 0 lets the pool grow from numberOfThreads up to it while that raises throughput
+        MatchingCriteriaDetails(String[] keywordsToSearch,String flagStr,int numberOfThreads,String engineName,int maxOpenFiles,int adaptiveMaximumThreads) {
+            this.keywordsToSearch = keywordsToSearch;
+            this.keywordsToSearchByteArrays = new byte[keywordsToSearch.length][];
+            for (int i = 0; i < keywordsToSearch.length; i++) {
+                this.keywordsToSearchByteArrays[i] = keywordsToSearch[i].getBytes();
+                this.maxKeywordLength = Math.max(this.maxKeywordLength, this.keywordsToSearchByteArrays[i].length);
+            }
 
             this.flags = new HashSet<>();
             insertFlagsFromStr(flags,flagStr);
 
-            this.LPS = preProcess(this.keywordToSearchByteArray);
+            this.matcher = Matcher.forKeywords(this.keywordsToSearchByteArrays, engineName);
             this.numberOfThreads = numberOfThreads;
-            this.executorService = new MyThreadPoolExecutorVersion1(numberOfThreads);
+            if (maxOpenFiles > 0) {
+                this.executorService = newVirtualThreadExecutor();
+                this.openFiles = new Semaphore(maxOpenFiles);
+            } else if (adaptiveMaximumThreads > 0) {
+                MyThreadPoolExecutorVersion2 pool = new MyThreadPoolExecutorVersion2(numberOfThreads, Math.max(numberOfThreads, adaptiveMaximumThreads),
+                        60, TimeUnit.SECONDS, QUEUED_TASKS_PER_THREAD * numberOfThreads, QueueFullPolicy.CALLER_RUNS);
+                pool.enableAdaptiveSizing(ADAPTIVE_SAMPLE_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+                this.executorService = pool;
+            } else {
+                this.executorService = new MyThreadPoolExecutorVersion1(numberOfThreads, containsFlag('w'),
+                        QUEUED_TASKS_PER_THREAD * numberOfThreads, QueueFullPolicy.CALLER_RUNS);
+            }
+            this.resultWriter = new ResultWriter(containsFlag('o'));
         }
 
         private void insertFlagsFromStr(Set<Character> flags, String flagStr) {
@@ -41,6 +102,74 @@ public class Grep {
             return flags.contains(f);
         }
 
+        public boolean isMultiKeyword() {
+            return keywordsToSearch.length > 1;
+        }
+
+        // one virtual thread per task, a task blocked on a slow read then does not hold an os thread.
+        // only jdk 21 and later have them, older jdks reject the option instead of quietly running the pool
+        private static ExecutorService newVirtualThreadExecutor() {
+            try {
+                Method newVirtualThreadPerTaskExecutor = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (ExecutorService) newVirtualThreadPerTaskExecutor.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalArgumentException("--virtual-threads : virtual threads need JDK 21 or later");
+            }
+        }
+
+        void acquireFile() {
+            if (openFiles != null)
+                openFiles.acquireUninterruptibly();
+        }
+
+        void releaseFile() {
+            if (openFiles != null)
+                openFiles.release();
+        }
+
+        // stops the pool once its tasks are done and flushes the pending output
+        void close() throws InterruptedException {
+            executorService.shutdown();
+            executorService.awaitTermination(10, TimeUnit.MINUTES);
+            resultWriter.close();
+        }
+
+    }
+
+    // results of the chunks of one file, printed by whichever chunk finishes last
+    private static class FileChunkResults {
+        private String filePath;
+        private OutputSlot outputSlot;
+        private MatchList[] chunkMatches;
+        private int[] chunkNewlineCounts;
+        private AtomicInteger remainingChunks;
+
+        FileChunkResults(String filePath, OutputSlot outputSlot, int numberOfChunks) {
+            this.filePath = filePath;
+            this.outputSlot = outputSlot;
+            this.chunkMatches = new MatchList[numberOfChunks];
+            this.chunkNewlineCounts = new int[numberOfChunks];
+            this.remainingChunks = new AtomicInteger(numberOfChunks);
+        }
+
+        // matches is null for a chunk that could not be read, returns true for the last chunk to complete
+        synchronized boolean chunkDone(int chunkIndex, MatchList matches, int newlineCount) {
+            chunkMatches[chunkIndex] = matches;
+            chunkNewlineCounts[chunkIndex] = newlineCount;
+            return remainingChunks.decrementAndGet() == 0;
+        }
+
+        // chunk line numbers are relative, shift them by the newlines of all previous chunks.
+        // past a chunk that could not be read the line numbers are unknown, the matches end there
+        synchronized MatchList merge() {
+            MatchList matches = new MatchList();
+            int linesBefore = 0;
+            for (int i = 0; i < chunkMatches.length && chunkMatches[i] != null; i++) {
+                matches.addAll(chunkMatches[i], linesBefore);
+                linesBefore += chunkNewlineCounts[i];
+            }
+            return matches;
+        }
     }
 
     public static void main(String args[]) throws InterruptedException, FileNotFoundException {
@@ -48,21 +177,92 @@ public class Grep {
         long programStartTime = System.currentTimeMillis();
 
         int argumentsLength = args.length;
-        if (argumentsLength <= 1) {
-            System.out.println("usage : java Grep [-flags] [keywordToSearch] [-numberOfThreads] [file/directory path ...]");
+
+        // options if provided by user, e.g. --engine=horspool, --patterns=file, --index=file or -e keyword
+        int argCount = 0;
+        String engineName = null;
+        String indexFile = null;
+        String buildIndexFile = null;
+        int maxOpenFiles = 0;
+        int adaptiveMaximumThreads = 0;
+        Set<String> keywordsToSearch = new LinkedHashSet<>();
+        while (argCount < argumentsLength && (args[argCount].startsWith("--") || args[argCount].equals("-e"))) {
+            String option = args[argCount++];
+            if (option.equals("-e") && argCount < argumentsLength) {
+                keywordsToSearch.add(args[argCount++]);
+            } else if (option.startsWith("--engine=")) {
+                engineName = option.substring("--engine=".length());
+            } else if (option.startsWith("--index=")) {
+                indexFile = option.substring("--index=".length());
+            } else if (option.equals("--virtual-threads")) {
+                maxOpenFiles = DEFAULT_MAX_OPEN_FILES;
+            } else if (option.startsWith("--virtual-threads=")) {
+                try {
+                    maxOpenFiles = Integer.parseInt(option.substring("--virtual-threads=".length()));
+                } catch (NumberFormatException e) {
+                    maxOpenFiles = -1;
+                }
+                if (maxOpenFiles <= 0) {
+                    System.out.println(option + " : maximum number of open files must be a positive number");
+                    return;
+                }
+            } else if (option.equals("--adaptive-threads")) {
+                adaptiveMaximumThreads = DEFAULT_ADAPTIVE_MAXIMUM_THREADS;
+            } else if (option.startsWith("--adaptive-threads=")) {
+                try {
+                    adaptiveMaximumThreads = Integer.parseInt(option.substring("--adaptive-threads=".length()));
+                } catch (NumberFormatException e) {
+                    adaptiveMaximumThreads = -1;
+                }
+                if (adaptiveMaximumThreads <= 0) {
+                    System.out.println(option + " : maximum number of threads must be a positive number");
+                    return;
+                }
+            } else if (option.startsWith("--build-index=")) {
+                buildIndexFile = option.substring("--build-index=".length());
+            } else if (option.startsWith("--patterns=")) {
+                String patternFile = option.substring("--patterns=".length());
+                try {
+                    for (String pattern : Files.readAllLines(Paths.get(patternFile))) {
+                        if (!pattern.isEmpty())
+                            keywordsToSearch.add(pattern);
+                    }
+                } catch (IOException e) {
+                    System.out.println(patternFile + " : can not read pattern file");
+                    return;
+                }
+            } else {
+                System.out.println(option + " : unknown option");
+                return;
+            }
+        }
+
+        if (buildIndexFile != null) {
+            buildIndex(buildIndexFile, args, argCount);
+            System.out.println("program execution time in milli seconds : " + (System.currentTimeMillis() - programStartTime));
             return;
         }
 
-        // flags if provided by user
-        int argCount = 0;
+        // keyword is not given separately when it comes from -e or a pattern file
+        int requiredArguments = keywordsToSearch.isEmpty() ? 2 : 1;
+        if (argumentsLength - argCount < requiredArguments) {
+            System.out.println("usage : java Grep [--engine=kmp|filter|horspool|twoway|ahocorasick] [--patterns=file] [--index=indexFile] "
+                    + "[--virtual-threads[=maxOpenFiles]] [--adaptive-threads[=maximumThreads]] [-e keywordToSearch ...] [-flags] [keywordToSearch] [-numberOfThreads] [file/directory path ...]");
+            System.out.println("        java Grep --build-index=indexFile [-flags] [-numberOfThreads] [file/directory path ...]");
+            return;
+        }
+
+        // flags if provided by user, without a separate keyword the next argument may be the number of threads
         String flags = null;
-        if (args[0].charAt(0) == '-') {
-            flags = args[0];
+        boolean keywordGivenAsOption = !keywordsToSearch.isEmpty();
+        if (args[argCount].charAt(0) == '-' && !(keywordGivenAsOption && extractNumberOfThreads(args[argCount]) > 0)) {
+            flags = args[argCount];
             argCount++;
         }
 
         // keyword to search
-        String keywordToSearch = args[argCount++];
+        if (keywordsToSearch.isEmpty())
+            keywordsToSearch.add(args[argCount++]);
 
         // extract number of threads if provided by user
         int numberOfThreads = 1;    // default
@@ -74,20 +274,47 @@ public class Grep {
             }
         }
 
-        MatchingCriteriaDetails matchingCriteriaDetails = new MatchingCriteriaDetails(keywordToSearch,flags,numberOfThreads);
+        // opened before the pool threads exist so a bad index file can still end the program
+        TrigramIndex trigramIndex = null;
+        if (indexFile != null) {
+            byte[][] keywordByteArrays = new byte[keywordsToSearch.size()][];
+            int i = 0;
+            for (String keyword : keywordsToSearch) {
+                keywordByteArrays[i++] = keyword.getBytes();
+            }
+            try {
+                trigramIndex = TrigramIndex.open(Paths.get(indexFile), keywordByteArrays);
+            } catch (IOException e) {
+                System.out.println(indexFile + " : can not read index file");
+                return;
+            }
+        }
+
+        MatchingCriteriaDetails matchingCriteriaDetails;
+        try {
+            matchingCriteriaDetails = new MatchingCriteriaDetails(keywordsToSearch.toArray(new String[0]),flags,numberOfThreads,engineName,maxOpenFiles,adaptiveMaximumThreads);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            return;
+        }
+        matchingCriteriaDetails.trigramIndex = trigramIndex;
 
         // file/directory names
-        while(argCount < argumentsLength) {
+        ResultWriter resultWriter = matchingCriteriaDetails.resultWriter;
+        OutputSlot[] outputSlots = resultWriter.expand(resultWriter.root(), argumentsLength - argCount);
+        for (OutputSlot outputSlot : outputSlots) {
             String filePath = args[argCount++];
             try {
-                matchingFromInitialFilePath(matchingCriteriaDetails, filePath);
+                matchingFromInitialFilePath(matchingCriteriaDetails, filePath, outputSlot);
             } catch (Exception e) {
                 e.printStackTrace();
+                resultWriter.write(outputSlot, new byte[0]);
             }
         }
 
-        matchingCriteriaDetails.executorService.shutdown();
-        matchingCriteriaDetails.executorService.awaitTermination(10, TimeUnit.MINUTES);
+        // directory tasks keep adding tasks until the whole tree is walked
+        awaitPendingTasks(matchingCriteriaDetails);
+        matchingCriteriaDetails.close();
 
         long programEndTime = System.currentTimeMillis();
 
@@ -95,104 +322,307 @@ public class Grep {
 
     }
 
-    private static void matchingFromInitialFilePath(MatchingCriteriaDetails matchingCriteriaDetails, String filePath) throws IOException {
+    private static void matchingFromInitialFilePath(MatchingCriteriaDetails matchingCriteriaDetails, String filePath, OutputSlot outputSlot) throws IOException {
 
-        File file = new File(filePath);
-        if (!file.exists()) {
-            System.out.println(filePath + " : No such file or directory");
+        Path path = Paths.get(filePath);
+        if (!Files.exists(path)) {
+            matchingCriteriaDetails.resultWriter.write(outputSlot, (filePath + " : No such file or directory\n").getBytes());
             return;
         }
 
-        if (file.isDirectory()) {
-            matchingFromDirectory(matchingCriteriaDetails,file);
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        if (attributes.isDirectory()) {
+            submitTask(matchingCriteriaDetails, () -> matchingFromDirectory(matchingCriteriaDetails, path, outputSlot));
+        } else if (isExcludedByIndex(matchingCriteriaDetails, path, attributes)) {
+            printResults(path.toString(), outputSlot, new MatchList(), matchingCriteriaDetails);
+        } else if (isChunkedFile(matchingCriteriaDetails, attributes.size())) {
+            matchingFromChunkedFile(matchingCriteriaDetails, path, attributes.size(), outputSlot);
         } else {
-            matchingFromFile(matchingCriteriaDetails,file);
+            // searched right here on the main thread, still one of the open files
+            matchingCriteriaDetails.acquireFile();
+            try {
+                matchingFromFile(matchingCriteriaDetails, path, outputSlot);
+            } finally {
+                matchingCriteriaDetails.releaseFile();
+            }
         }
     }
 
-    private static void matchingFromDirectory(MatchingCriteriaDetails matchingCriteriaDetails, File folder) throws IOException {
-        for (File file : Objects.requireNonNull(folder.listFiles())) {
-            if (file.isDirectory()) {
-                if (matchingCriteriaDetails.containsFlag('r'))
-                    matchingFromDirectory(matchingCriteriaDetails,file);
+    // runs on the pool, subdirectories become tasks of their own so discovery and scanning overlap
+    private static void matchingFromDirectory(MatchingCriteriaDetails matchingCriteriaDetails, Path folder, OutputSlot outputSlot) {
+        List<Path> paths = new ArrayList<>();
+        List<BasicFileAttributes> attributesList = new ArrayList<>();
+        try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(folder)) {
+            for (Path path : directoryStream) {
+                try {
+                    BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                    if (!attributes.isDirectory() || matchingCriteriaDetails.containsFlag('r')) {
+                        paths.add(path);
+                        attributesList.add(attributes);
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        // ordered output needs the same order on every run, the directory stream does not promise any
+        if (matchingCriteriaDetails.containsFlag('o')) {
+            Integer[] order = new Integer[paths.size()];
+            for (int i = 0; i < order.length; i++)
+                order[i] = i;
+            Arrays.sort(order, Comparator.comparing(paths::get));
+            List<Path> sortedPaths = new ArrayList<>();
+            List<BasicFileAttributes> sortedAttributesList = new ArrayList<>();
+            for (Integer i : order) {
+                sortedPaths.add(paths.get(i));
+                sortedAttributesList.add(attributesList.get(i));
+            }
+            paths = sortedPaths;
+            attributesList = sortedAttributesList;
+        }
+
+        OutputSlot[] outputSlots = matchingCriteriaDetails.resultWriter.expand(outputSlot, paths.size());
+        for (int i = 0; i < paths.size(); i++) {
+            Path path = paths.get(i);
+            BasicFileAttributes attributes = attributesList.get(i);
+            OutputSlot childOutputSlot = outputSlots[i];
+            if (attributes.isDirectory()) {
+                submitTask(matchingCriteriaDetails, () -> matchingFromDirectory(matchingCriteriaDetails, path, childOutputSlot));
+            } else if (isExcludedByIndex(matchingCriteriaDetails, path, attributes)) {
+                printResults(path.toString(), childOutputSlot, new MatchList(), matchingCriteriaDetails);
+            } else if (isChunkedFile(matchingCriteriaDetails, attributes.size())) {
+                matchingFromChunkedFile(matchingCriteriaDetails, path, attributes.size(), childOutputSlot);
             } else {
-                matchingCriteriaDetails.executorService.execute(() -> {
+                submitFileTask(matchingCriteriaDetails, () -> {
                     try {
-                        matchingFromFile(matchingCriteriaDetails, file);
+                        matchingFromFile(matchingCriteriaDetails, path, childOutputSlot);
                     } catch (IOException e) {
                         e.printStackTrace();
+                        // an empty block, so ordered output goes on past this file
+                        matchingCriteriaDetails.resultWriter.write(childOutputSlot, new byte[0]);
                     }
                 });
             }
         }
     }
 
-    private static void matchingFromFile(MatchingCriteriaDetails matchingCriteriaDetails, File file) throws IOException {
+    // tasks can submit more tasks, so the pool is only shut down once pendingTasks drops to 0
+    private static void submitTask(MatchingCriteriaDetails matchingCriteriaDetails, Runnable task) {
+        matchingCriteriaDetails.pendingTasks.incrementAndGet();
+        matchingCriteriaDetails.executorService.execute(() -> {
+            try {
+                task.run();
+            } finally {
+                if (matchingCriteriaDetails.pendingTasks.decrementAndGet() == 0) {
+                    synchronized (matchingCriteriaDetails.pendingTasks) {
+                        matchingCriteriaDetails.pendingTasks.notifyAll();
+                    }
+                }
+            }
+        });
+    }
 
-        byte[] keywordToSearchArray = matchingCriteriaDetails.keywordToSearchByteArray;
-        int keywordLen = keywordToSearchArray.length;
-        int[] LPS = matchingCriteriaDetails.LPS;
+    // a task that opens a file. the permit is taken here, before the task exists, so with a thread per task
+    // the walker waits for open files to close instead of starting a thread for every file of the tree
+    private static void submitFileTask(MatchingCriteriaDetails matchingCriteriaDetails, Runnable task) {
+        matchingCriteriaDetails.acquireFile();
+        try {
+            submitTask(matchingCriteriaDetails, () -> {
+                try {
+                    task.run();
+                } finally {
+                    matchingCriteriaDetails.releaseFile();
+                }
+            });
+        } catch (RuntimeException e) {
+            matchingCriteriaDetails.releaseFile();
+            throw e;
+        }
+    }
 
-        int lineNumber = 1;
-        List<Integer> matchedLineNumbers = new ArrayList<>();
+    private static void awaitPendingTasks(MatchingCriteriaDetails matchingCriteriaDetails) throws InterruptedException {
+        synchronized (matchingCriteriaDetails.pendingTasks) {
+            while (matchingCriteriaDetails.pendingTasks.get() != 0)
+                matchingCriteriaDetails.pendingTasks.wait();
+        }
+    }
+
+    private static boolean isExcludedByIndex(MatchingCriteriaDetails matchingCriteriaDetails, Path file, BasicFileAttributes attributes) {
+        return matchingCriteriaDetails.trigramIndex != null && !matchingCriteriaDetails.trigramIndex.mayContainMatch(file, attributes);
+    }
 
-        FileInputStream fileInputStream = new FileInputStream(file);
-        byte[] text = new byte[1024];
-        int byteRead = 0;
-        int q = 0;
-        while ((byteRead = fileInputStream.read(text)) != -1) {
+    private static boolean isChunkedFile(MatchingCriteriaDetails matchingCriteriaDetails, long fileSize) {
+        return (matchingCriteriaDetails.numberOfThreads > 1 || matchingCriteriaDetails.openFiles != null) && fileSize > PARALLEL_CHUNK_SIZE;
+    }
 
-            for(int i=0;i<byteRead;i++) {
+    // split file in byte ranges, every range is a separate task on the pool
+    private static void matchingFromChunkedFile(MatchingCriteriaDetails matchingCriteriaDetails, Path file, long fileSize, OutputSlot outputSlot) {
+        int numberOfChunks = (int) ((fileSize + PARALLEL_CHUNK_SIZE - 1) / PARALLEL_CHUNK_SIZE);
+        FileChunkResults fileChunkResults = new FileChunkResults(file.toString(), outputSlot, numberOfChunks);
+
+        for (int i = 0; i < numberOfChunks; i++) {
+            int chunkIndex = i;
+            long start = i * PARALLEL_CHUNK_SIZE;
+            long end = Math.min(start + PARALLEL_CHUNK_SIZE, fileSize);
+            submitFileTask(matchingCriteriaDetails, () -> matchingFromFileChunk(matchingCriteriaDetails, file, fileChunkResults, chunkIndex, start, end));
+        }
+    }
 
-                while (q > 0 && keywordToSearchArray[q] != text[i])
-                    q = LPS[q-1];
+    private static void matchingFromFileChunk(MatchingCriteriaDetails matchingCriteriaDetails, Path file, FileChunkResults fileChunkResults,
+                                              int chunkIndex, long start, long end) {
+
+        MatchList matches = new MatchList();
+        int chunkNewlineCount = 0;
+        try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+            chunkNewlineCount = matchingFromFileRange(matchingCriteriaDetails, fileChannel, start, end, matches);
+        } catch (IOException e) {
+            // still counted as done, so the matches of the other chunks are printed
+            e.printStackTrace();
+            matches = null;
+        }
+
+        if (fileChunkResults.chunkDone(chunkIndex, matches, chunkNewlineCount))
+            printResults(fileChunkResults.filePath, fileChunkResults.outputSlot, fileChunkResults.merge(), matchingCriteriaDetails);
+    }
+
+    private static void matchingFromFile(MatchingCriteriaDetails matchingCriteriaDetails, Path file, OutputSlot outputSlot) throws IOException {
+
+        MatchList matches = new MatchList();
+        try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+            matchingFromFileRange(matchingCriteriaDetails, fileChannel, 0, fileChannel.size(), matches);
+        }
+        printResults(file.toString(),outputSlot,matches,matchingCriteriaDetails);
+    }
 
-                if (keywordToSearchArray[q] == text[i])
-                    q++;
+    // finds matches starting in [start,end), reading maxKeywordLength - 1 bytes past end for matches crossing it.
+    // line numbers are relative to start, returns the number of newlines in [start,end)
+    static int matchingFromFileRange(MatchingCriteriaDetails matchingCriteriaDetails, FileChannel fileChannel,
+                                     long start, long end, MatchList matches) throws IOException {
+
+        int keywordLen = matchingCriteriaDetails.maxKeywordLength;
+        long readEnd = Math.min(end + keywordLen - 1, fileChannel.size());
+        int newlineCount = 0;
+
+        if (matchingCriteriaDetails.containsFlag('m') && end - start >= MMAP_THRESHOLD) {
+            for (long position = start; position < end; position += MMAP_WINDOW_SIZE) {
+                long windowEnd = Math.min(position + MMAP_WINDOW_SIZE, end);
+                long mappedEnd = Math.min(windowEnd + keywordLen - 1, readEnd);
+                MappedByteBuffer text = fileChannel.map(FileChannel.MapMode.READ_ONLY, position, mappedEnd - position);
+                newlineCount += matchingCriteriaDetails.matcher.search(text, 0, (int) (windowEnd - position), text.limit(),
+                        newlineCount + 1, matches);
+            }
+            return newlineCount;
+        }
 
-                if (q == keywordLen) {
-                    /* match found */
-                    q = LPS[q-1];
-                    matchedLineNumbers.add(lineNumber);
+        // the last keywordLen - 1 bytes of a read are kept for the next one
+        byte[] buffer = new byte[Math.max(READ_BUFFER_SIZE, 2 * keywordLen)];
+        ByteBuffer text = ByteBuffer.wrap(buffer);
+        long position = start;
+        int validBytes = 0;
+        while (true) {
+            if (position < readEnd) {
+                int toRead = (int) Math.min(buffer.length - validBytes, readEnd - position);
+                int byteRead = fileChannel.read(ByteBuffer.wrap(buffer, validBytes, toRead), position);
+                if (byteRead == -1) {
+                    readEnd = position;
+                } else {
+                    position += byteRead;
+                    validBytes += byteRead;
                 }
-                if (text[i] == '\n')
-                    lineNumber++;
             }
+            boolean lastRead = (position >= readEnd);
+
+            long bufferStart = position - validBytes;
+            int ownedEnd = lastRead ? validBytes : validBytes - (keywordLen - 1);
+            ownedEnd = (int) Math.min(ownedEnd, end - bufferStart);
+            if (ownedEnd > 0) {
+                newlineCount += matchingCriteriaDetails.matcher.search(text, 0, ownedEnd, validBytes, newlineCount + 1, matches);
+                System.arraycopy(buffer, ownedEnd, buffer, 0, validBytes - ownedEnd);
+                validBytes -= ownedEnd;
+            }
+            if (lastRead)
+                return newlineCount;
         }
-        fileInputStream.close();
-        printResults(file.getPath(),matchedLineNumbers,matchingCriteriaDetails);
     }
 
-    private static void printResults(String filepath, List<Integer> matchedLineNumbers, MatchingCriteriaDetails matchingCriteriaDetails) {
+    // formats into the buffer of the calling thread and hands the bytes to the writer stage
+    private static void printResults(String filepath, OutputSlot outputSlot, MatchList matches, MatchingCriteriaDetails matchingCriteriaDetails) {
+        String[] keywordsToSearch = matchingCriteriaDetails.keywordsToSearch;
+        byte[] filepathBytes = filepath.getBytes();
+        ResultBuffer resultBuffer = RESULT_BUFFER.get();
+        resultBuffer.reset();
+
         // print results according to flags
-        if (matchingCriteriaDetails.containsFlag('c')) {
-            System.out.println(filepath + " : " + matchedLineNumbers.size());
+        if (matchingCriteriaDetails.isMultiKeyword()) {
+            if (matchingCriteriaDetails.containsFlag('c')) {
+                int[] counts = new int[keywordsToSearch.length];
+                for (int i = 0; i < matches.size(); i++) {
+                    counts[matches.keywordIndex(i)]++;
+                }
+                for (int k = 0; k < keywordsToSearch.length; k++) {
+                    resultBuffer.append(filepathBytes).append(" : ").append(keywordsToSearch[k]).append(" : ").append(counts[k]).newLine();
+                }
+            }
+            else if (matches.size() == 0)
+                resultBuffer.append("No match found in file : ").append(filepathBytes).newLine();
+            else {
+                matches.sort();
+                for (int i = 0; i < matches.size(); i++) {
+                    resultBuffer.append(filepathBytes).append(" : ").append(matches.lineNumber(i)).append(" : ")
+                            .append(keywordsToSearch[matches.keywordIndex(i)]).newLine();
+                }
+            }
+        }
+        else if (matchingCriteriaDetails.containsFlag('c')) {
+            resultBuffer.append(filepathBytes).append(" : ").append(matches.size()).newLine();
         }
         else {
-            if (matchedLineNumbers.size() == 0)
-                System.out.println("No match found in file : " + filepath);
+            if (matches.size() == 0)
+                resultBuffer.append("No match found in file : ").append(filepathBytes).newLine();
             else {
-                for (Integer matchedLineNumber : matchedLineNumbers) {
-                    System.out.println(filepath + " : " + matchedLineNumber);
+                for (int i = 0; i < matches.size(); i++) {
+                    resultBuffer.append(filepathBytes).append(" : ").append(matches.lineNumber(i)).newLine();
                 }
             }
         }
+
+        matchingCriteriaDetails.resultWriter.write(outputSlot, resultBuffer.toByteArray());
     }
 
-    private static int[] preProcess(byte[] pattern) {
-        int patternLen = pattern.length;
-        int prefix[] = new int[patternLen];
-        prefix[0] = 0;
-        int k = 0;
-        for(int i=1;i<patternLen;i++) {
-            while (k > 0 && pattern[k] != pattern[i])
-                k = prefix[k-1];
-            if (pattern[k] == pattern[i])
-                k++;
-            prefix[i] = k;
+    // --build-index=indexFile [-flags] [-numberOfThreads] [file/directory path ...], only flag 'r' is used
+    private static void buildIndex(String indexFile, String args[], int argCount) throws InterruptedException {
+        boolean recursive = false;
+        if (argCount < args.length && args[argCount].charAt(0) == '-' && extractNumberOfThreads(args[argCount]) <= 0) {
+            recursive = args[argCount].indexOf('r') != -1;
+            argCount++;
         }
 
-        return prefix;
+        int numberOfThreads = 1;    // default
+        if (argCount < args.length) {
+            int result = extractNumberOfThreads(args[argCount]);
+            if (result != -1) {
+                numberOfThreads = result;
+                argCount++;
+            }
+        }
+
+        List<Path> roots = new ArrayList<>();
+        for (; argCount < args.length; argCount++) {
+            roots.add(Paths.get(args[argCount]));
+        }
+        if (roots.isEmpty()) {
+            System.out.println("usage : java Grep --build-index=indexFile [-flags] [-numberOfThreads] [file/directory path ...]");
+            return;
+        }
+
+        try {
+            TrigramIndex.build(Paths.get(indexFile), roots, recursive, numberOfThreads);
+        } catch (IOException e) {
+            System.out.println(indexFile + " : can not build index, " + e.getMessage());
+        }
     }
 
     // if valid string is entered returns number of threads
@@ -0,0 +1,31 @@
+package Grep;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// Boyer-Moore-Horspool, shifts the window by the distance of its last byte from the end of the keyword
+class HorspoolMatcher extends SkipMatcher {
+
+    private int[] shift = new int[256];
+
+    HorspoolMatcher(byte[] keyword) {
+        super(keyword);
+        Arrays.fill(shift, keywordLen);
+        for (int i = 0; i < keywordLen - 1; i++) {
+            shift[keyword[i] & 0xFF] = keywordLen - 1 - i;
+        }
+    }
+
+    @Override
+    int indexOf(ByteBuffer text, int from, int lastStart) {
+        byte lastByte = keyword[keywordLen - 1];
+        int start = from;
+        while (start <= lastStart) {
+            byte b = text.get(start + keywordLen - 1);
+            if (b == lastByte && matchesAt(text, start, 0, keywordLen - 1))
+                return start;
+            start += shift[b & 0xFF];
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,59 @@
+package Grep;
+
+import java.nio.ByteBuffer;
+
+// Knuth-Morris-Pratt automaton, looks at every byte once
+class KmpMatcher implements Matcher {
+
+    private byte[] keyword;
+    private int[] LPS;
+
+    KmpMatcher(byte[] keyword) {
+        this.keyword = keyword;
+        this.LPS = preProcess(keyword);
+    }
+
+    @Override
+    public int search(ByteBuffer text, int from, int ownedEnd, int limit, int lineNumber, MatchList matches) {
+        int keywordLen = keyword.length;
+        int scanEnd = Math.min(ownedEnd + keywordLen - 1, limit);
+        int newlineCount = 0;
+        int q = 0;
+        for (int i = from; i < scanEnd; i++) {
+            byte b = text.get(i);
+
+            while (q > 0 && keyword[q] != b)
+                q = LPS[q-1];
+
+            if (keyword[q] == b)
+                q++;
+
+            if (q == keywordLen) {
+                /* match found */
+                q = LPS[q-1];
+                // matches starting after ownedEnd belong to the next range
+                if (i - keywordLen + 1 < ownedEnd)
+                    matches.add(lineNumber + newlineCount);
+            }
+            if (b == '\n')
+                newlineCount++;
+        }
+        return newlineCount - ByteSearchUtils.countNewlines(text, ownedEnd, scanEnd);
+    }
+
+    private static int[] preProcess(byte[] pattern) {
+        int patternLen = pattern.length;
+        int prefix[] = new int[patternLen];
+        prefix[0] = 0;
+        int k = 0;
+        for(int i=1;i<patternLen;i++) {
+            while (k > 0 && pattern[k] != pattern[i])
+                k = prefix[k-1];
+            if (pattern[k] == pattern[i])
+                k++;
+            prefix[i] = k;
+        }
+
+        return prefix;
+    }
+}
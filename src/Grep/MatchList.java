@@ -0,0 +1,58 @@
+package Grep;
+
+import java.util.Arrays;
+
+// line numbers of the matches in one file together with the index of the keyword found,
+// grows like an ArrayList but without boxing every line number
+class MatchList {
+
+    private int[] lineNumbers = new int[16];
+    private int[] keywordIndexes = new int[16];
+    private int size = 0;
+
+    void add(int lineNumber) {
+        add(lineNumber, 0);
+    }
+
+    void add(int lineNumber, int keywordIndex) {
+        if (size == lineNumbers.length) {
+            lineNumbers = Arrays.copyOf(lineNumbers, 2 * size);
+            keywordIndexes = Arrays.copyOf(keywordIndexes, 2 * size);
+        }
+        lineNumbers[size] = lineNumber;
+        keywordIndexes[size] = keywordIndex;
+        size++;
+    }
+
+    // appends the matches of other with their line numbers shifted by lineOffset
+    void addAll(MatchList other, int lineOffset) {
+        for (int i = 0; i < other.size; i++) {
+            add(other.lineNumbers[i] + lineOffset, other.keywordIndexes[i]);
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    int lineNumber(int i) {
+        return lineNumbers[i];
+    }
+
+    int keywordIndex(int i) {
+        return keywordIndexes[i];
+    }
+
+    // orders by line number and then keyword index, so output does not depend on where the file was split
+    void sort() {
+        long[] keys = new long[size];
+        for (int i = 0; i < size; i++) {
+            keys[i] = ((long) lineNumbers[i] << 32) | keywordIndexes[i];
+        }
+        Arrays.sort(keys);
+        for (int i = 0; i < size; i++) {
+            lineNumbers[i] = (int) (keys[i] >>> 32);
+            keywordIndexes[i] = (int) keys[i];
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package Grep;
+
+import java.nio.ByteBuffer;
+
+// search engine for the keywords of one run, implementations are shared by all worker threads and keep no per search state
+interface Matcher {
+
+    // keywords at least this long skip through the text with Horspool or Two-Way
+    int SKIP_MATCHER_MIN_LENGTH = 16;
+    // keywords with at most this many distinct bytes get short Horspool shifts, Two-Way is used instead
+    int SMALL_ALPHABET_SIZE = 4;
+
+    // reports matches starting in [from, ownedEnd) of text that end before limit, the first line of text[from] is lineNumber.
+    // returns the number of newlines in [from, ownedEnd)
+    int search(ByteBuffer text, int from, int ownedEnd, int limit, int lineNumber, MatchList matches);
+
+    // engineName is one of kmp, filter, horspool, twoway, ahocorasick or null to pick by keyword length and alphabet.
+    // more than one keyword always needs ahocorasick
+    static Matcher forKeywords(byte[][] keywords, String engineName) {
+        if (keywords.length > 1 || "ahocorasick".equals(engineName)) {
+            if (engineName != null && !engineName.equals("ahocorasick"))
+                throw new IllegalArgumentException("matcher engine " + engineName + " supports a single keyword only");
+            return new AhoCorasickMatcher(keywords);
+        }
+
+        byte[] keyword = keywords[0];
+        if (engineName == null) {
+            // skipping on a byte that is seldom in the text beats every other engine
+            if (CandidateFilter.hasUncommonByte(keyword))
+                return new CandidateFilter(keyword);
+            if (keyword.length >= SKIP_MATCHER_MIN_LENGTH) {
+                boolean[] seen = new boolean[256];
+                int alphabetSize = 0;
+                for (byte b : keyword) {
+                    if (!seen[b & 0xFF]) {
+                        seen[b & 0xFF] = true;
+                        alphabetSize++;
+                    }
+                }
+                if (alphabetSize <= SMALL_ALPHABET_SIZE)
+                    return new TwoWayMatcher(keyword);
+                return new HorspoolMatcher(keyword);
+            }
+            if (CandidateFilter.isWorthFiltering(keyword))
+                return new CandidateFilter(keyword);
+            return new KmpMatcher(keyword);
+        }
+
+        switch (engineName) {
+            case "kmp":
+                return new KmpMatcher(keyword);
+            case "filter":
+                return new CandidateFilter(keyword);
+            case "horspool":
+                return new HorspoolMatcher(keyword);
+            case "twoway":
+                return new TwoWayMatcher(keyword);
+            default:
+                throw new IllegalArgumentException("unknown matcher engine : " + engineName);
+        }
+    }
+}
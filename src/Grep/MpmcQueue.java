@@ -0,0 +1,126 @@
+package Grep;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+// bounded multi producer multi consumer queue without locks (Vyukov): every cell has a sequence number that
+// says whose turn it is. a producer may fill cell i when its sequence equals the tail position, a consumer
+// may empty it when it equals position + 1. head and tail are each claimed with one CAS and kept on
+// cache lines of their own, so producers and consumers do not slow each other down.
+// capacity is rounded up to a power of two
+final class MpmcQueue<E> {
+
+    private static final VarHandle HEAD;
+    private static final VarHandle TAIL;
+    private static final VarHandle SEQUENCES = MethodHandles.arrayElementVarHandle(long[].class);
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            HEAD = lookup.findVarHandle(MpmcQueue.class, "head", long.class);
+            TAIL = lookup.findVarHandle(MpmcQueue.class, "tail", long.class);
+        }
+        catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private long p0, p1, p2, p3, p4, p5, p6;
+    // next position to poll
+    private volatile long head;
+    private long q0, q1, q2, q3, q4, q5, q6;
+    // next position to offer
+    private volatile long tail;
+    private long r0, r1, r2, r3, r4, r5, r6;
+
+    private final int mask;
+    private final long[] sequences;
+    private final Object[] elements;
+
+    MpmcQueue(int capacity) {
+        if (capacity <= 0 || capacity > 1 << 30)
+            throw new IllegalArgumentException();
+        int size = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        mask = size - 1;
+        sequences = new long[size];
+        elements = new Object[size];
+        for (int i = 0; i < size; i++) {
+            sequences[i] = i;
+        }
+    }
+
+    // false when the queue is full
+    boolean offer(E element) {
+        if (element == null)
+            throw new NullPointerException();
+        long position = tail;
+        while (true) {
+            int index = (int) position & mask;
+            long difference = (long) SEQUENCES.getAcquire(sequences, index) - position;
+            if (difference == 0) {
+                if (TAIL.compareAndSet(this, position, position + 1)) {
+                    elements[index] = element;
+                    // hands the cell to the consumer of this position
+                    SEQUENCES.setRelease(sequences, index, position + 1);
+                    return true;
+                }
+                position = tail;
+            }
+            else if (difference < 0) {
+                if (position - head > mask)
+                    return false;
+                // not full, the consumer of the previous round took the cell but has not emptied it yet
+                Thread.yield();
+                position = tail;
+            }
+            else {
+                // another producer took this position
+                position = tail;
+            }
+        }
+    }
+
+    // null when the queue is empty
+    E poll() {
+        long position = head;
+        while (true) {
+            int index = (int) position & mask;
+            long difference = (long) SEQUENCES.getAcquire(sequences, index) - (position + 1);
+            if (difference == 0) {
+                if (HEAD.compareAndSet(this, position, position + 1)) {
+                    E element = (E) elements[index];
+                    elements[index] = null;
+                    // hands the cell to the producer of the next round
+                    SEQUENCES.setRelease(sequences, index, position + mask + 1);
+                    return element;
+                }
+                position = head;
+            }
+            else if (difference < 0) {
+                // nothing offered at this position yet, or the offer is still being written
+                return null;
+            }
+            else {
+                position = head;
+            }
+        }
+    }
+
+    // counts offers still being written, so a queue that is not empty may still poll null for a moment
+    int size() {
+        long head = this.head;
+        return (int) Math.min(tail - head, mask + 1);
+    }
+
+    boolean isEmpty() {
+        return head == tail;
+    }
+
+    boolean isFull() {
+        return size() > mask;
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+}
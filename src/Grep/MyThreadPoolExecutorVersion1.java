@@ -2,21 +2,24 @@ package Grep;
 
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
 
 
 // only fixed thread number of threads are created
+// in work stealing mode every thread has its own deque and idle threads steal from the others,
+// so neither execute nor the workers take the global lock.
+// at most queueCapacity tasks wait for a thread, queueFullPolicy decides what execute does with one more
 public class MyThreadPoolExecutorVersion1 implements ExecutorService {
 
     private class ExecutorThreadRunnable implements Runnable {
 
         @Override
         public void run() {
-            terminated.lock();
-            activeThreads++;
-            terminated.unlock();
             try {
                 while (true) {
                     lock.lock();
@@ -29,6 +32,7 @@ public class MyThreadPoolExecutorVersion1 implements ExecutorService {
                     }
 
                     Runnable task = taskQueue.poll();
+                    notFull.signal();
 
                     lock.unlock();
                     task.run();
@@ -48,26 +52,112 @@ public class MyThreadPoolExecutorVersion1 implements ExecutorService {
         }
     }
 
+    private class WorkStealingThreadRunnable implements Runnable {
+
+        private Deque<Runnable> deque = new ConcurrentLinkedDeque<>();
+        // true while registered in idleWorkers
+        private AtomicBoolean idle = new AtomicBoolean(false);
+        private Thread thread;
+
+        @Override
+        public void run() {
+            currentWorker.set(this);
+            try {
+                while (true) {
+                    Runnable task = findTask(this);
+                    if (task == null) {
+                        // shutDown is read before the last look at the deques, a task added
+                        // before shutdown is either found here or taken back by execute
+                        if (shutDown && (thread.isInterrupted() || (task = findTask(this)) == null))
+                            return;
+                        if (task == null && idle.compareAndSet(false, true)) {
+                            idleWorkers.add(this);
+                            // a task added before registration is seen here, one added after it unparks us
+                            task = findTask(this);
+                            if (task == null && !shutDown)
+                                LockSupport.park(this);
+                            idle.set(false);
+                        }
+                        if (task == null)
+                            continue;
+                    }
+                    releasePlace();
+                    task.run();
+                }
+            }
+            catch (Exception e) {
+
+            }
+            finally {
+                terminated.lock();
+                activeThreads--;
+                if (activeThreads == 0)
+                    allDone.signal();
+                terminated.unlock();
+            }
+        }
+    }
+
     private Queue<Runnable> taskQueue;
+    private int queueCapacity;
+    private QueueFullPolicy queueFullPolicy;
     private ExecutorThreadRunnable executorThreadRunnable[];
     private Thread threads[];
 
     private Lock lock = new ReentrantLock();    // multiple producer
     private Condition empty = lock.newCondition();
+    private Condition notFull = lock.newCondition();
     private volatile boolean shutDown = false;
 
-    private volatile int activeThreads = 0;
+    // counted from construction, a worker that has not started yet is still active
+    private volatile int activeThreads;
 
     private Lock terminated = new ReentrantLock();
     private Condition allDone = terminated.newCondition();
 
+    private boolean workStealing;
+    private WorkStealingThreadRunnable workStealingThreadRunnable[];
+    private Queue<WorkStealingThreadRunnable> idleWorkers = new ConcurrentLinkedQueue<>();
+    private ThreadLocal<WorkStealingThreadRunnable> currentWorker = new ThreadLocal<>();
+    // tasks in all deques, and the producers waiting on notFull for one of them to be taken
+    private AtomicInteger queuedTasks = new AtomicInteger();
+    private volatile int waitingProducers;
+
 
     MyThreadPoolExecutorVersion1(int numberOfThreads) {
-        taskQueue = new LinkedList<>();
+        this(numberOfThreads, false);
+    }
 
-        executorThreadRunnable = new ExecutorThreadRunnable[numberOfThreads];
+    MyThreadPoolExecutorVersion1(int numberOfThreads, boolean workStealing) {
+        this(numberOfThreads, workStealing, Integer.MAX_VALUE, QueueFullPolicy.ABORT);
+    }
+
+    MyThreadPoolExecutorVersion1(int numberOfThreads, boolean workStealing, int queueCapacity, QueueFullPolicy queueFullPolicy) {
+        if (queueCapacity <= 0)
+            throw new IllegalArgumentException();
+        this.queueCapacity = queueCapacity;
+        this.queueFullPolicy = queueFullPolicy;
+        this.workStealing = workStealing;
+        this.activeThreads = numberOfThreads;
         threads = new Thread[numberOfThreads];
 
+        if (workStealing) {
+            workStealingThreadRunnable = new WorkStealingThreadRunnable[numberOfThreads];
+            for (int i = 0; i < numberOfThreads; i++) {
+                workStealingThreadRunnable[i] = new WorkStealingThreadRunnable();
+                threads[i] = new Thread(workStealingThreadRunnable[i]);
+                workStealingThreadRunnable[i].thread = threads[i];
+            }
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            return;
+        }
+
+        taskQueue = new ArrayDeque<>();
+
+        executorThreadRunnable = new ExecutorThreadRunnable[numberOfThreads];
+
         for(int i=0;i<numberOfThreads;i++) {
             executorThreadRunnable[i] = new ExecutorThreadRunnable();
             threads[i] = new Thread(executorThreadRunnable[i]);
@@ -83,6 +173,12 @@ public class MyThreadPoolExecutorVersion1 implements ExecutorService {
                 return;
             shutDown = true;
             empty.signalAll();
+            notFull.signalAll();
+            if (workStealing) {
+                for (Thread thread : threads) {
+                    LockSupport.unpark(thread);
+                }
+            }
         }
         finally {
             lock.unlock();
@@ -96,10 +192,21 @@ public class MyThreadPoolExecutorVersion1 implements ExecutorService {
             if (shutDown)
                 return null;
             shutDown = true;
+            notFull.signalAll();
             for (Thread thread : threads) {
                 thread.interrupt();
             }
             List<Runnable> list = new ArrayList<>();
+            if (workStealing) {
+                for (WorkStealingThreadRunnable worker : workStealingThreadRunnable) {
+                    Runnable task;
+                    while ((task = worker.deque.pollFirst()) != null) {
+                        queuedTasks.decrementAndGet();
+                        list.add(task);
+                    }
+                }
+                return list;
+            }
             while (!taskQueue.isEmpty()) {
                 list.add(taskQueue.poll());
             }
@@ -122,11 +229,15 @@ public class MyThreadPoolExecutorVersion1 implements ExecutorService {
 
     @Override
     public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
         terminated.lock();
-        if (activeThreads == 0)
-            return true;
         try {
-            return allDone.await(timeout, unit);
+            while (activeThreads != 0) {
+                if (nanos <= 0)
+                    return false;
+                nanos = allDone.awaitNanos(nanos);
+            }
+            return true;
         }
         finally {
             terminated.unlock();
@@ -172,11 +283,160 @@ public class MyThreadPoolExecutorVersion1 implements ExecutorService {
     public void execute(Runnable command) {
         if (command == null)
             throw new NullPointerException();
+        if (workStealing) {
+            executeWorkStealing(command);
+            return;
+        }
+        boolean callerRuns = false;
         lock.lock();
+        try {
+            long nanos = queueFullPolicy.timeoutNanos;
+            while (!shutDown && taskQueue.size() >= queueCapacity && !callerRuns) {
+                if (queueFullPolicy.action == QueueFullPolicy.Action.ABORT)
+                    throw new RejectedExecutionException("task queue is full");
+                if (queueFullPolicy.action == QueueFullPolicy.Action.CALLER_RUNS || isPoolThread())
+                    callerRuns = true;
+                else if (queueFullPolicy.action == QueueFullPolicy.Action.BLOCK)
+                    notFull.await();
+                else if (nanos <= 0)
+                    throw new RejectedExecutionException("task queue is full");
+                else
+                    nanos = notFull.awaitNanos(nanos);
+            }
+            if (shutDown)
+                throw new RejectedExecutionException();
+            if (!callerRuns) {
+                taskQueue.add(command);
+                empty.signal();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException(e);
+        }
+        finally {
+            lock.unlock();
+        }
+        if (callerRuns)
+            command.run();
+    }
+
+    private void executeWorkStealing(Runnable command) {
         if (shutDown)
             throw new RejectedExecutionException();
-        taskQueue.add(command);
-        empty.signal();
-        lock.unlock();
+        if (!reservePlace()) {
+            command.run();
+            return;
+        }
+
+        // workers push to the front of their own deque, other threads spread tasks over random deques
+        WorkStealingThreadRunnable worker = currentWorker.get();
+        Deque<Runnable> deque;
+        if (worker != null) {
+            deque = worker.deque;
+            deque.offerFirst(command);
+        } else {
+            deque = workStealingThreadRunnable[ThreadLocalRandom.current().nextInt(workStealingThreadRunnable.length)].deque;
+            deque.offerLast(command);
+        }
+
+        // shutdown raced with this call and the task may never be picked up
+        if (shutDown && deque.removeFirstOccurrence(command)) {
+            releasePlace();
+            throw new RejectedExecutionException();
+        }
+
+        WorkStealingThreadRunnable idleWorker;
+        while ((idleWorker = idleWorkers.poll()) != null) {
+            if (idleWorker.idle.compareAndSet(true, false)) {
+                LockSupport.unpark(idleWorker.thread);
+                break;
+            }
+        }
+    }
+
+    private boolean isPoolThread() {
+        if (workStealing)
+            return currentWorker.get() != null;
+        for (Thread thread : threads) {
+            if (thread == Thread.currentThread())
+                return true;
+        }
+        return false;
+    }
+
+    private boolean tryReservePlace() {
+        int queued;
+        do {
+            queued = queuedTasks.get();
+            if (queued >= queueCapacity)
+                return false;
+        } while (!queuedTasks.compareAndSet(queued, queued + 1));
+        return true;
+    }
+
+    // work stealing mode: takes one of the queueCapacity places in the deques, false when the caller has to run the task
+    private boolean reservePlace() {
+        if (tryReservePlace())
+            return true;
+        if (queueFullPolicy.action == QueueFullPolicy.Action.ABORT)
+            throw new RejectedExecutionException("task queue is full");
+        if (queueFullPolicy.action == QueueFullPolicy.Action.CALLER_RUNS || isPoolThread())
+            return false;
+
+        lock.lock();
+        waitingProducers++;
+        try {
+            long nanos = queueFullPolicy.timeoutNanos;
+            // waitingProducers is published before the place is tried again, so a worker freeing it after this try signals us
+            while (!tryReservePlace()) {
+                if (shutDown)
+                    throw new RejectedExecutionException();
+                if (queueFullPolicy.action == QueueFullPolicy.Action.BLOCK)
+                    notFull.await();
+                else if (nanos <= 0)
+                    throw new RejectedExecutionException("task queue is full");
+                else
+                    nanos = notFull.awaitNanos(nanos);
+            }
+            return true;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException(e);
+        }
+        finally {
+            waitingProducers--;
+            lock.unlock();
+        }
+    }
+
+    private void releasePlace() {
+        queuedTasks.decrementAndGet();
+        if (waitingProducers != 0) {
+            lock.lock();
+            try {
+                notFull.signal();
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // own deque first (newest task), otherwise steal the oldest task of a random victim
+    private Runnable findTask(WorkStealingThreadRunnable worker) {
+        Runnable task = worker.deque.pollFirst();
+        if (task != null)
+            return task;
+
+        int numberOfWorkers = workStealingThreadRunnable.length;
+        int start = ThreadLocalRandom.current().nextInt(numberOfWorkers);
+        for (int i = 0; i < numberOfWorkers; i++) {
+            WorkStealingThreadRunnable victim = workStealingThreadRunnable[(start + i) % numberOfWorkers];
+            if (victim != worker && (task = victim.deque.pollLast()) != null)
+                return task;
+        }
+        return null;
     }
 }
@@ -1,32 +1,113 @@
 package Grep;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
-
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+// corePoolSize threads, then the bounded task queue, then extra threads up to maximumPoolSize.
+// when all are taken queueFullPolicy decides what execute does with the task.
+// once the core threads run, execute and the workers only meet in the lock free task queue: an idle worker
+// spins, then yields, then parks in idleWorkers until execute unparks it. the lock is only taken to start
+// or end a thread, on shutdown and by producers waiting for room.
+// with enableAdaptiveSizing a controller thread moves targetPoolSize between corePoolSize and maximumPoolSize
+// by hill climbing on the measured throughput. threads above the target end like threads above corePoolSize,
+// once they were idle for keepAliveTime, and a full queue still starts threads up to maximumPoolSize
 public class MyThreadPoolExecutorVersion2 implements ExecutorService {
 
+    static private final int DEFAULT_QUEUE_CAPACITY = 100;
+    // polls of an empty queue before a worker parks, spinning only pays off with another core to fill the queue
+    static private final int SPINS = Runtime.getRuntime().availableProcessors() > 1 ? 1 << 10 : 0;
+    static private final int YIELDS = Runtime.getRuntime().availableProcessors() > 1 ? 1 << 4 : 0;
+    // more spinning workers only take cpu time from the threads that run tasks and submit them
+    static private final int MAXIMUM_SPINNING_WORKERS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
     private int corePoolSize;
     private int maximumPoolSize;
     private long keepAliveTime;
     private TimeUnit unit;
 
     private Lock lock = new ReentrantLock();
-    private Condition condition = lock.newCondition();
     private Condition allThreadEnded = lock.newCondition();
+    private Condition notFull = lock.newCondition();
 
-    private BoundedQueue<Runnable> taskQueue = new BoundedQueue<>(100);
+    private MpmcQueue<Runnable> taskQueue;
+    private QueueFullPolicy queueFullPolicy;
     private volatile boolean allowCoreThreadTimeOut = false;
     private volatile boolean shutdown = false;
     private Set<Thread> threadSet = new HashSet<>();
+    // threadSet.size(), readable without the lock
+    private volatile int poolSize;
+
+    private Queue<RunInfo> idleWorkers = new ConcurrentLinkedQueue<>();
+    // workers between two tasks that have not parked yet, execute need not wake anyone while there are some
+    private AtomicInteger searchingWorkers = new AtomicInteger();
+    // the searching workers that spin, at most MAXIMUM_SPINNING_WORKERS
+    private AtomicInteger spinningWorkers = new AtomicInteger();
+    // producers waiting on notFull, written under the lock
+    private volatile int waitingProducers;
+
+    // threads the pool aims for, raised by the controller while tasks wait in the queue
+    private volatile int targetPoolSize;
+    // null unless adaptive sizing is enabled, tasks are then wrapped in TimedTask
+    private volatile SizeController sizeController;
+    private LongAdder completedTasks = new LongAdder();
+    private LongAdder queueWaitNanos = new LongAdder();
 
     MyThreadPoolExecutorVersion2(int corePoolSize, int maximumPoolSize, long keepAliveTime, TimeUnit unit) {
+        this(corePoolSize, maximumPoolSize, keepAliveTime, unit, DEFAULT_QUEUE_CAPACITY, QueueFullPolicy.ABORT);
+    }
+
+    // queueCapacity is rounded up to a power of two
+    MyThreadPoolExecutorVersion2(int corePoolSize, int maximumPoolSize, long keepAliveTime, TimeUnit unit,
+                                 int queueCapacity, QueueFullPolicy queueFullPolicy) {
+        if (queueCapacity <= 0)
+            throw new IllegalArgumentException();
+        this.taskQueue = new MpmcQueue<>(queueCapacity);
+        this.queueFullPolicy = queueFullPolicy;
         this.corePoolSize = corePoolSize;
         this.maximumPoolSize = maximumPoolSize;
         this.keepAliveTime = keepAliveTime;
         this.unit = unit;
+        this.targetPoolSize = Math.max(corePoolSize, 1);
+    }
+
+    // the core threads end like the others once they were idle for keepAliveTime
+    void allowCoreThreadTimeOut(boolean value) {
+        allowCoreThreadTimeOut = value;
+    }
+
+    // starts the controller, it samples the pool every samplePeriod until shutdown
+    void enableAdaptiveSizing(long samplePeriod, TimeUnit unit) {
+        if (samplePeriod <= 0)
+            throw new IllegalArgumentException();
+        lock.lock();
+        try {
+            if (shutdown || sizeController != null)
+                return;
+            sizeController = new SizeController(unit.toNanos(samplePeriod));
+            sizeController.thread.start();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    int getPoolSize() {
+        return poolSize;
+    }
+
+    int getTargetPoolSize() {
+        return targetPoolSize;
     }
 
     @Override
@@ -36,7 +117,12 @@ public class MyThreadPoolExecutorVersion2 implements ExecutorService {
             if (shutdown)
                 return;
             shutdown = true;
-            condition.signalAll();
+            notFull.signalAll();
+            for (Thread thread : threadSet) {
+                LockSupport.unpark(thread);
+            }
+            if (sizeController != null)
+                LockSupport.unpark(sizeController.thread);
         }
         finally {
             lock.unlock();
@@ -51,11 +137,15 @@ public class MyThreadPoolExecutorVersion2 implements ExecutorService {
             if (shutdown)
                 return null;
             shutdown = true;
+            notFull.signalAll();
             for (Thread thread : threadSet) {
                 thread.interrupt();
             }
-            while (!taskQueue.isEmpty()) {
-                list.add(taskQueue.poll());
+            if (sizeController != null)
+                LockSupport.unpark(sizeController.thread);
+            Runnable task;
+            while ((task = taskQueue.poll()) != null) {
+                list.add(task instanceof TimedTask ? ((TimedTask) task).task : task);
             }
             return list;
         }
@@ -71,16 +161,20 @@ public class MyThreadPoolExecutorVersion2 implements ExecutorService {
 
     @Override
     public boolean isTerminated() {
-        return (threadSet.size() == 0);
+        return poolSize == 0;
     }
 
     @Override
     public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
         lock.lock();
-        if (threadSet.size() == 0)
-            return true;
         try {
-            return allThreadEnded.await(timeout, unit);
+            while (!threadSet.isEmpty()) {
+                if (nanos <= 0)
+                    return false;
+                nanos = allThreadEnded.awaitNanos(nanos);
+            }
+            return true;
         }
         finally {
             lock.unlock();
@@ -89,338 +183,802 @@ public class MyThreadPoolExecutorVersion2 implements ExecutorService {
 
     @Override
     public <T> Future<T> submit(Callable<T> task) {
-        lock.lock();
-        try {
-            FutureImpl<T> futureImpl = new FutureImpl<T>();
-            if (threadSet.size() < corePoolSize) {
-                CallInfo<T> callInfo = new CallInfo<T>(true,task,futureImpl);
-                Thread thread = new Thread(callInfo);
-                threadSet.add(thread);
-                thread.start();
-            }
-            else if (!taskQueue.isFull()) {
-                CallInfoShort<T> callInfoShort = new CallInfoShort<T>(task,futureImpl);
-                taskQueue.add(callInfoShort);
-                condition.signal();
-            }
-            else if (threadSet.size() < maximumPoolSize) {
-                CallInfo<T> callInfo = new CallInfo<T>(false,task,futureImpl);
-                Thread thread = new Thread(callInfo);
-                threadSet.add(thread);
-                thread.start();
-            }
-            else {
-                throw new RejectedExecutionException();
-            }
-            return futureImpl;
-        }
-        finally {
-            lock.unlock();
-        }
+        if (task == null)
+            throw new NullPointerException();
+        FutureImpl<T> futureImpl = new FutureImpl<>(task);
+        execute(futureImpl);
+        return futureImpl;
     }
 
     @Override
     public <T> Future<T> submit(Runnable task, T result) {
-        return null;
+        if (task == null)
+            throw new NullPointerException();
+        return submit(Executors.callable(task, result));
     }
 
     @Override
     public Future<?> submit(Runnable task) {
-        return null;
+        if (task == null)
+            throw new NullPointerException();
+        return submit(Executors.callable(task, null));
     }
 
     @Override
     public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> tasks) throws InterruptedException {
-        return null;
+        return invokeAll(tasks, false, 0);
     }
 
     @Override
     public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> tasks, long timeout, TimeUnit unit) throws InterruptedException {
-        return null;
+        return invokeAll(tasks, true, unit.toNanos(timeout));
+    }
+
+    // all tasks are submitted at once, the caller waits once for the last completion instead of on every future
+    private <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> tasks, boolean timed, long nanos) throws InterruptedException {
+        List<Future<T>> futures = new ArrayList<>(tasks.size());
+        CountDownLatch remaining = new CountDownLatch(tasks.size());
+        try {
+            for (Callable<T> task : tasks) {
+                FutureImpl<T> futureImpl = new FutureImpl<>(task);
+                futureImpl.whenComplete((result, exception) -> remaining.countDown());
+                futures.add(futureImpl);
+                execute(futureImpl);
+            }
+            if (timed)
+                remaining.await(nanos, TimeUnit.NANOSECONDS);
+            else
+                remaining.await();
+            return futures;
+        }
+        finally {
+            // the ones left after a timeout, an interrupt or a rejection
+            if (remaining.getCount() != 0) {
+                for (Future<T> future : futures) {
+                    future.cancel(true);
+                }
+            }
+        }
     }
 
     @Override
     public <T> T invokeAny(Collection<? extends Callable<T>> tasks) throws InterruptedException, ExecutionException {
-        return null;
+        try {
+            return invokeAny(tasks, false, 0);
+        }
+        catch (TimeoutException e) {
+            throw new IllegalStateException(e);
+        }
     }
 
     @Override
     public <T> T invokeAny(Collection<? extends Callable<T>> tasks, long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
-        return null;
+        return invokeAny(tasks, true, unit.toNanos(timeout));
+    }
+
+    // the first task to succeed completes winner and the others are cancelled, winner fails only when all tasks did
+    private <T> T invokeAny(Collection<? extends Callable<T>> tasks, boolean timed, long nanos) throws InterruptedException, ExecutionException, TimeoutException {
+        int numberOfTasks = tasks.size();
+        if (numberOfTasks == 0)
+            throw new IllegalArgumentException();
+        FutureImpl<T> winner = new FutureImpl<>(null);
+        AtomicInteger failures = new AtomicInteger();
+        List<Future<T>> futures = new ArrayList<>(numberOfTasks);
+        try {
+            for (Callable<T> task : tasks) {
+                FutureImpl<T> futureImpl = new FutureImpl<>(task);
+                futureImpl.whenComplete((result, exception) -> {
+                    if (exception == null)
+                        winner.set(result);
+                    else if (failures.incrementAndGet() == numberOfTasks)
+                        winner.setException(exception);
+                });
+                futures.add(futureImpl);
+                execute(futureImpl);
+                if (winner.isDone())
+                    break;
+            }
+            return timed ? winner.get(nanos, TimeUnit.NANOSECONDS) : winner.get();
+        }
+        finally {
+            for (Future<T> future : futures) {
+                future.cancel(true);
+            }
+        }
     }
 
     @Override
     public void execute(Runnable command) {
+        if (command == null)
+            throw new NullPointerException();
+        if (shutdown)
+            throw new RejectedExecutionException();
+        if (sizeController != null)
+            command = new TimedTask(command);
+        // the core threads run, hand the task over without the lock
+        if (poolSize >= corePoolSize && taskQueue.offer(command)) {
+            afterOffer();
+            return;
+        }
+
+        boolean callerRuns = false;
         lock.lock();
         try {
-            if (threadSet.size() < corePoolSize) {
-                RunInfo runInfo = new RunInfo(true,command);
-                Thread thread = new Thread(runInfo);
-                threadSet.add(thread);
-                thread.start();
+            long nanos = queueFullPolicy.timeoutNanos;
+            while (true) {
+                if (shutdown)
+                    throw new RejectedExecutionException();
+                if (threadSet.size() < corePoolSize) {
+                    startThread(command);
+                    break;
+                }
+                else if (taskQueue.offer(command)) {
+                    afterOffer();
+                    break;
+                }
+                else if (threadSet.size() < maximumPoolSize) {
+                    startThread(command);
+                    break;
+                }
+
+                // a pool thread waiting for room in its own queue could leave no thread to make it
+                if (queueFullPolicy.action == QueueFullPolicy.Action.ABORT)
+                    throw new RejectedExecutionException("task queue is full");
+                if (queueFullPolicy.action == QueueFullPolicy.Action.CALLER_RUNS || threadSet.contains(Thread.currentThread())) {
+                    callerRuns = true;
+                    break;
+                }
+                // waitingProducers is published before the queue is looked at again, so a worker taking
+                // a task after this look signals notFull
+                waitingProducers++;
+                try {
+                    if (!taskQueue.isFull())
+                        continue;
+                    if (queueFullPolicy.action == QueueFullPolicy.Action.BLOCK)
+                        notFull.await();
+                    else if (nanos <= 0)
+                        throw new RejectedExecutionException("task queue is full");
+                    else
+                        nanos = notFull.awaitNanos(nanos);
+                }
+                finally {
+                    waitingProducers--;
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException(e);
+        }
+        finally {
+            lock.unlock();
+        }
+        if (callerRuns)
+            command.run();
+    }
+
+    // called with the lock held
+    private void startThread(Runnable firstTask) {
+        RunInfo runInfo = new RunInfo(firstTask);
+        Thread thread = new Thread(runInfo);
+        runInfo.thread = thread;
+        threadSet.add(thread);
+        poolSize = threadSet.size();
+        // grown by a full queue, the controller goes on from there
+        if (targetPoolSize < poolSize)
+            targetPoolSize = poolSize;
+        thread.start();
+    }
+
+    // the task is published before searchingWorkers is read: a worker that stops searching after this read
+    // polls the queue once more and finds it, so only when none is searching an idle one is woken
+    private void afterOffer() {
+        // no thread left to run the task: every thread ended after shutdown, or corePoolSize is 0
+        if (poolSize == 0 || shutdown) {
+            lock.lock();
+            try {
+                if (threadSet.isEmpty())
+                    startThread(null);
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+        if (searchingWorkers.get() == 0)
+            wakeIdleWorker();
+    }
+
+    // the woken worker is counted as searching from here on, so the offers made before it runs wake no other
+    private void wakeIdleWorker() {
+        RunInfo idleWorker;
+        while ((idleWorker = idleWorkers.poll()) != null) {
+            if (idleWorker.idle.compareAndSet(true, false)) {
+                searchingWorkers.incrementAndGet();
+                LockSupport.unpark(idleWorker.thread);
+                break;
+            }
+        }
+    }
+
+    // called by a worker that stopped searching with task, it passes on the tasks left behind
+    private void afterTake() {
+        if (waitingProducers != 0) {
+            lock.lock();
+            try {
+                notFull.signal();
             }
-            else if (!taskQueue.isFull()) {
-                taskQueue.add(command);
-                condition.signal();
+            finally {
+                lock.unlock();
             }
-            else if (threadSet.size() < maximumPoolSize) {
-                RunInfo runInfo = new RunInfo(false,command);
-                Thread thread = new Thread(runInfo);
-                threadSet.add(thread);
-                thread.start();
+        }
+        if (!taskQueue.isEmpty() && searchingWorkers.get() == 0)
+            wakeIdleWorker();
+    }
+
+    // the next task for worker, null when it has to end
+    private Runnable getTask(RunInfo worker) {
+        searchingWorkers.incrementAndGet();
+        while (true) {
+            Runnable task = pollSpinning();
+            if (task != null) {
+                searchingWorkers.decrementAndGet();
+                afterTake();
+                return task;
             }
-            else {
-                throw new RejectedExecutionException();
+
+            // a worker woken by cancel(true) of its last task must not take the interrupt into the next one
+            if (!shutdown)
+                Thread.interrupted();
+            boolean timed = allowCoreThreadTimeOut || poolSize > keptPoolSize();
+            boolean timedOut = false;
+            if (worker.idle.compareAndSet(false, true)) {
+                idleWorkers.add(worker);
+                searchingWorkers.decrementAndGet();
+                // a task offered before this look is taken here, one offered after it sees no searching worker and unparks us
+                task = pollUnlessEmpty();
+                if (task == null && !shutdown) {
+                    if (timed) {
+                        long start = System.nanoTime();
+                        LockSupport.parkNanos(this, unit.toNanos(keepAliveTime));
+                        timedOut = System.nanoTime() - start >= unit.toNanos(keepAliveTime);
+                    }
+                    else {
+                        LockSupport.park(this);
+                    }
+                }
+                // not woken by wakeIdleWorker, which would have counted it as searching
+                if (worker.idle.compareAndSet(true, false))
+                    searchingWorkers.incrementAndGet();
+                if (task != null) {
+                    searchingWorkers.decrementAndGet();
+                    afterTake();
+                    return task;
+                }
+            }
+            if ((shutdown || (timed && timedOut)) && tryEnd()) {
+                searchingWorkers.decrementAndGet();
+                return null;
             }
         }
+    }
+
+    // poll returns null for a cell a producer claimed but has not filled yet, and that producer may already have
+    // seen this worker searching. so the last look before parking waits for such an offer instead of missing it
+    private Runnable pollUnlessEmpty() {
+        Runnable task;
+        while ((task = taskQueue.poll()) == null && !taskQueue.isEmpty())
+            Thread.yield();
+        return task;
+    }
+
+    // polls the queue, spinning and then yielding while it is empty
+    private Runnable pollSpinning() {
+        Runnable task = taskQueue.poll();
+        if (task != null || SPINS + YIELDS == 0)
+            return task;
+        int spinning;
+        do {
+            spinning = spinningWorkers.get();
+            if (spinning >= MAXIMUM_SPINNING_WORKERS)
+                return null;
+        } while (!spinningWorkers.compareAndSet(spinning, spinning + 1));
+        try {
+            for (int i = 0; i < SPINS + YIELDS; i++) {
+                if (i < SPINS)
+                    Thread.onSpinWait();
+                else
+                    Thread.yield();
+                task = taskQueue.poll();
+                if (task != null || (shutdown && taskQueue.isEmpty()))
+                    return task;
+            }
+            return null;
+        }
+        finally {
+            spinningWorkers.decrementAndGet();
+        }
+    }
+
+    // under the lock, so a task offered after shutdown either is seen here or finds the thread gone and starts another
+    private boolean tryEnd() {
+        lock.lock();
+        try {
+            if (!taskQueue.isEmpty())
+                return false;
+            if (!shutdown && !allowCoreThreadTimeOut && threadSet.size() <= keptPoolSize())
+                return false;
+            threadSet.remove(Thread.currentThread());
+            poolSize = threadSet.size();
+            if (threadSet.isEmpty())
+                allThreadEnded.signalAll();
+            return true;
+        }
         finally {
             lock.unlock();
         }
     }
 
-    class RunInfo implements Runnable {
+    // the threads that do not end after keepAliveTime unless allowCoreThreadTimeOut, the target with the controller
+    private int keptPoolSize() {
+        return sizeController != null ? targetPoolSize : corePoolSize;
+    }
 
-        private boolean isCoreThread;
-        private Runnable firstTaskRunnable;
+    // starts threads for the tasks waiting in the queue, up to targetPoolSize
+    private void growToTarget() {
+        lock.lock();
+        try {
+            while (!shutdown && threadSet.size() < targetPoolSize && !taskQueue.isEmpty())
+                startThread(null);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
 
-        RunInfo(boolean isCoreThread,Runnable runnable) {
-            this.isCoreThread = isCoreThread;
-            this.firstTaskRunnable = runnable;
+    // measures how long a task waited in the queue and counts it once done
+    private final class TimedTask implements Runnable {
+
+        private final Runnable task;
+        private final long offerTime = System.nanoTime();
+
+        TimedTask(Runnable task) {
+            this.task = task;
         }
 
         @Override
         public void run() {
-            //execute First Task
-            if (firstTaskRunnable != null) {
-                firstTaskRunnable.run();
-                firstTaskRunnable = null;
+            queueWaitNanos.add(System.nanoTime() - offerTime);
+            try {
+                task.run();
             }
+            finally {
+                completedTasks.increment();
+            }
+        }
+    }
 
-            // loop which get task from queue
-            try {
-                while (true) {
-                    lock.lock();
-                    while (taskQueue.isEmpty() || Thread.currentThread().isInterrupted()) {
-                        if (shutdown)
-                            return;
-                        if (isCoreThread && !allowCoreThreadTimeOut) {
-                            condition.await();
-                        }
-                        else {
-                            // remove extra threads if time out exceeds
-                            if (condition.await(keepAliveTime,unit)) {
-                                return;
-                            }
-                        }
-                    }
-                    Runnable task = taskQueue.poll();
-                    lock.unlock();
-                    // execute task of queue
-                    task.run();
+    // hill climbing as in the .net thread pool: every sample compares the throughput with the one before the
+    // last move of the target. k threads more are kept when they raised the throughput by at least half of
+    // what k of target threads do (k / 2 target), k threads less when they did not lower it by as much,
+    // otherwise the move is undone and the next probe goes the other way. a kept move is repeated twice as large.
+    // while tasks barely wait the target steps back down toward corePoolSize. threads above the target only end
+    // once idle for keepAliveTime, so while a backlog keeps them busy the controller waits for the pool to shrink
+    private final class SizeController implements Runnable {
+
+        // average queue wait that shows the threads do not keep up
+        private static final long BACKLOG_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+        // samples without a move before the target is moved anyway, to look for a better size
+        private static final int PROBE_INTERVAL = 4;
+
+        private final long samplePeriodNanos;
+        private final Thread thread;
+        private long lastCompleted;
+        private long lastWaited;
+        private double lastThroughput;
+        // the move made at the last sample, judged at this one unless it was an undo
+        private int lastMove;
+        private boolean lastMoveWasUndo;
+        private int direction = 1;
+        private int step = 1;
+        private int samplesWithoutMove;
+
+        SizeController(long samplePeriodNanos) {
+            this.samplePeriodNanos = samplePeriodNanos;
+            this.thread = new Thread(this, "pool-size-controller");
+            this.thread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            long last = System.nanoTime();
+            while (!shutdown) {
+                LockSupport.parkNanos(this, samplePeriodNanos);
+                long now = System.nanoTime();
+                if (now - last < samplePeriodNanos)
+                    continue;
+                sample(now - last);
+                last = now;
+            }
+        }
+
+        private void sample(long elapsedNanos) {
+            long completed = completedTasks.sum();
+            long waited = queueWaitNanos.sum();
+            long done = completed - lastCompleted;
+            double throughput = done * 1e9 / elapsedNanos;
+            boolean backlog = done == 0 ? !taskQueue.isEmpty() : (waited - lastWaited) / done >= BACKLOG_WAIT_NANOS;
+            lastCompleted = completed;
+            lastWaited = waited;
+
+            int target = targetPoolSize;
+            double threshold = 0.5 * Math.abs(lastMove) / target;
+            int move = 0;
+            boolean undo = false;
+            if (!backlog) {
+                move = -1;
+                direction = 1;
+                step = 1;
+            }
+            else if (poolSize > target) {
+                // a lowered target the busy threads have not followed yet, a move measured now would show nothing
+                move = 0;
+            }
+            else if (lastMove > 0 && !lastMoveWasUndo) {
+                if (throughput > lastThroughput * (1 + threshold)) {
+                    step = Math.min(2 * step, Math.max(1, maximumPoolSize / 4));
+                    move = step;
+                } else {
+                    move = -lastMove;
+                    undo = true;
+                    direction = -1;
+                    step = 1;
+                }
+            }
+            else if (lastMove < 0 && !lastMoveWasUndo) {
+                if (throughput < lastThroughput * (1 - threshold)) {
+                    move = -lastMove;
+                    undo = true;
+                    direction = 1;
+                    step = 1;
+                } else {
+                    step = Math.min(2 * step, Math.max(1, maximumPoolSize / 4));
+                    move = -step;
+                }
+            }
+            else if (++samplesWithoutMove >= PROBE_INTERVAL) {
+                move = direction;
+            }
+
+            int newTarget = Math.max(Math.max(corePoolSize, 1), Math.min(maximumPoolSize, target + move));
+            if (newTarget == target && move != 0) {
+                // at a bound, the next probe has to go the other way
+                direction = -Integer.signum(move);
+                step = 1;
+            }
+            move = newTarget - target;
+            if (move != 0)
+                samplesWithoutMove = 0;
+            lastMove = backlog ? move : 0;
+            lastMoveWasUndo = undo;
+            lastThroughput = throughput;
+            targetPoolSize = newTarget;
+            if (newTarget > poolSize)
+                growToTarget();
+            else if (newTarget < target) {
+                // idle threads that parked without keepAliveTime while they were within the target look again
+                for (RunInfo idleWorker : idleWorkers) {
+                    LockSupport.unpark(idleWorker.thread);
                 }
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            } finally {
-                Thread thread = Thread.currentThread();
-                threadSet.remove(thread);
-                if (threadSet.size() == 0)
-                    allThreadEnded.signalAll();
-                lock.unlock();
             }
         }
     }
 
-    class CallInfo<V> implements Runnable {
+    class RunInfo implements Runnable {
 
-        boolean isCoreThread;
-        Callable<V> callable;
-        FutureImpl<V> futureImpl;
+        private Runnable firstTaskRunnable;
+        private Thread thread;
+        // true while registered in idleWorkers
+        private AtomicBoolean idle = new AtomicBoolean(false);
 
-        CallInfo(boolean isCoreThread, Callable<V> callable, FutureImpl<V> futureImpl) {
-            this.isCoreThread = isCoreThread;
-            this.callable = callable;
-            this.futureImpl = futureImpl;
+        RunInfo(Runnable runnable) {
+            this.firstTaskRunnable = runnable;
         }
 
         @Override
         public void run() {
-            if (callable != null) {
-                try {
-                    executeSendResultAndSignal(callable,futureImpl);
-                } catch (Exception e) {
-                    e.printStackTrace();
+            boolean ended = false;
+            try {
+                Runnable task = firstTaskRunnable;
+                firstTaskRunnable = null;
+                while (task != null || (task = getTask(this)) != null) {
+                    task.run();
+                    task = null;
                 }
-                callable = null;
+                ended = true;
             }
-            try {
-                while (true) {
+            finally {
+                // a task threw, the thread leaves without tryEnd
+                if (!ended) {
                     lock.lock();
-                    while (taskQueue.isEmpty() || Thread.currentThread().isInterrupted()) {
-                        if (shutdown)
-                            return;
-                        if (isCoreThread && !allowCoreThreadTimeOut) {
-                            condition.await();
-                        }
-                        else {
-                            // remove extra threads if time out exceeds
-                            if (condition.await(keepAliveTime,unit)) {
-                                return;
-                            }
-                        }
+                    try {
+                        threadSet.remove(thread);
+                        poolSize = threadSet.size();
+                        if (threadSet.isEmpty() && !taskQueue.isEmpty())
+                            startThread(null);
+                        else if (threadSet.isEmpty())
+                            allThreadEnded.signalAll();
+                    }
+                    finally {
+                        lock.unlock();
                     }
-                    Runnable task = taskQueue.poll();
-                    lock.unlock();
-                    // execute task of queue
-                    task.run();
                 }
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            } finally {
-                Thread thread = Thread.currentThread();
-                threadSet.remove(thread);
-                if (threadSet.size() == 0)
-                    allThreadEnded.signalAll();
-                lock.unlock();
             }
         }
     }
 
-    private <V> void executeSendResultAndSignal(Callable<V> callable,FutureImpl<V> futureImpl) throws Exception {
-        futureImpl.futureLock.lock();
-        if (futureImpl.isDone())
-            return;
-        try {
-            futureImpl.result = callable.call();
-            futureImpl.isDone = true;
-            futureImpl.futureLockCondition.signal();
+    // lock free future: a CAS on state completes it once, threads in get() and completion callbacks wait on a
+    // Treiber stack that completion takes over in one swap. callbacks run in the completing thread,
+    // or right away in the caller when the future is already done
+    static class FutureImpl<V> implements RunnableFuture<V> {
+
+        private static final int NEW = 0;
+        private static final int COMPLETING = 1;
+        private static final int NORMAL = 2;
+        private static final int EXCEPTIONAL = 3;
+        private static final int CANCELLED = 4;
+        private static final int INTERRUPTING = 5;
+        private static final int INTERRUPTED = 6;
+
+        // a waiting thread or a callback
+        private static final class Waiter {
+            private volatile Thread thread;
+            private final BiConsumer<Object, Throwable> callback;
+            private volatile Waiter next;
+
+            Waiter(Thread thread, BiConsumer<Object, Throwable> callback) {
+                this.thread = thread;
+                this.callback = callback;
+            }
         }
-        finally {
-            futureImpl.futureLock.unlock();
+
+        // top of the stack once completed, nothing can be pushed any more
+        private static final Waiter COMPLETED = new Waiter(null, null);
+
+        private static final VarHandle STATE;
+        private static final VarHandle RUNNER;
+        private static final VarHandle WAITERS;
+
+        static {
+            try {
+                MethodHandles.Lookup lookup = MethodHandles.lookup();
+                STATE = lookup.findVarHandle(FutureImpl.class, "state", int.class);
+                RUNNER = lookup.findVarHandle(FutureImpl.class, "runner", Thread.class);
+                WAITERS = lookup.findVarHandle(FutureImpl.class, "waiters", Waiter.class);
+            } catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
         }
-    }
 
-    class CallInfoShort<V> implements Runnable {
-        Callable<V> callable;
-        FutureImpl<V> futureImpl;
+        private Callable<V> callable;
+        private volatile int state = NEW;
+        // result or exception, published by the write of state
+        private Object outcome;
+        private volatile Thread runner;
+        private volatile Waiter waiters;
 
-        CallInfoShort(Callable<V> callable, FutureImpl<V> futureImpl) {
+        // callable null for a future completed with set or setException only
+        FutureImpl(Callable<V> callable) {
             this.callable = callable;
-            this.futureImpl = futureImpl;
         }
 
         @Override
         public void run() {
+            if (state != NEW || !RUNNER.compareAndSet(this, null, Thread.currentThread()))
+                return;
             try {
-                executeSendResultAndSignal(callable,futureImpl);
-            } catch (Exception e) {
-                e.printStackTrace();
+                if (state == NEW) {
+                    V result;
+                    try {
+                        result = callable.call();
+                    }
+                    catch (Throwable e) {
+                        setException(e);
+                        return;
+                    }
+                    set(result);
+                }
+            }
+            finally {
+                runner = null;
+                // do not leave the pool thread with the interrupt of a late cancel(true)
+                while (state == INTERRUPTING)
+                    Thread.yield();
+                if (state == INTERRUPTED)
+                    Thread.interrupted();
             }
         }
-    }
 
-    class FutureImpl<V> implements Future<V> {
+        boolean set(V result) {
+            if (!STATE.compareAndSet(this, NEW, COMPLETING))
+                return false;
+            outcome = result;
+            state = NORMAL;
+            finishCompletion();
+            return true;
+        }
 
-        boolean isDone = false;
-        boolean isCancelled = false;
-        ReentrantLock futureLock = new ReentrantLock();
-        Condition futureLockCondition = futureLock.newCondition();
-        V result;
+        boolean setException(Throwable exception) {
+            if (!STATE.compareAndSet(this, NEW, COMPLETING))
+                return false;
+            outcome = exception;
+            state = EXCEPTIONAL;
+            finishCompletion();
+            return true;
+        }
 
         @Override
         public boolean cancel(boolean mayInterruptIfRunning) {
-            futureLock.lock();
-            try {
-                if (isCancelled)
-                    return false;
-                isCancelled = true;
-                isDone = true;
+            if (!STATE.compareAndSet(this, NEW, mayInterruptIfRunning ? INTERRUPTING : CANCELLED))
                 return false;
+            if (mayInterruptIfRunning) {
+                Thread thread = runner;
+                if (thread != null)
+                    thread.interrupt();
+                state = INTERRUPTED;
             }
-            finally {
-                futureLock.unlock();
-            }
+            finishCompletion();
+            return true;
         }
 
         @Override
         public boolean isCancelled() {
-            return isCancelled;
+            return state >= CANCELLED;
         }
 
         @Override
         public boolean isDone() {
-            return isDone;
+            return state != NEW;
         }
 
         @Override
         public V get() throws InterruptedException, ExecutionException {
-            futureLock.lock();
-            try {
-                if (isDone)
-                    return result;
-                futureLockCondition.await();
-                return result;
-            }
-            finally {
-                futureLock.unlock();
-            }
+            int s = state;
+            if (s <= COMPLETING)
+                s = awaitDone(false, 0);
+            return report(s);
         }
 
         @Override
         public V get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
-            futureLock.lock();
-            try {
-                if (isDone)
-                    return result;
-                futureLockCondition.await(timeout,unit);
-                return result;
-            }
-            finally {
-                futureLock.unlock();
-            }
+            int s = state;
+            if (s <= COMPLETING && (s = awaitDone(true, unit.toNanos(timeout))) <= COMPLETING)
+                throw new TimeoutException();
+            return report(s);
+        }
+
+        // action gets the result or the exception (CancellationException once cancelled)
+        FutureImpl<V> whenComplete(BiConsumer<? super V, ? super Throwable> action) {
+            BiConsumer<Object, Throwable> callback = (result, exception) -> action.accept((V) result, exception);
+            if (!push(new Waiter(null, callback)))
+                runCallback(callback);
+            return this;
         }
-    }
 
-    private class BoundedQueue<E> {
-        E arr[];
-        int capacity;
-        int size;
-        int front;
-        int rear;
-        BoundedQueue(int capacity) {
-            this.capacity = capacity;
-            this.arr = (E[]) new Object[capacity];
-            this.size = 0;
-            this.front = 0;
-            this.rear = 0;
+        // the next stage, completed by the thread completing this one
+        <U> FutureImpl<U> thenApply(Function<? super V, ? extends U> function) {
+            FutureImpl<U> next = new FutureImpl<>(null);
+            whenComplete((result, exception) -> {
+                if (exception != null) {
+                    next.setException(exception);
+                    return;
+                }
+                try {
+                    next.set(function.apply(result));
+                }
+                catch (Throwable e) {
+                    next.setException(e);
+                }
+            });
+            return next;
         }
 
-        public void add(E element) {
-            arr[front] = element;
-            front = (front + 1)%capacity;
-            size++;
+        private boolean push(Waiter waiter) {
+            while (true) {
+                Waiter top = waiters;
+                if (top == COMPLETED)
+                    return false;
+                waiter.next = top;
+                if (WAITERS.compareAndSet(this, top, waiter))
+                    return true;
+            }
         }
 
-        public E peek() {
-            return arr[rear];
+        private void finishCompletion() {
+            Waiter waiter = (Waiter) WAITERS.getAndSet(this, COMPLETED);
+            for (; waiter != null; waiter = waiter.next) {
+                if (waiter.callback != null) {
+                    runCallback(waiter.callback);
+                    continue;
+                }
+                Thread thread = waiter.thread;
+                if (thread != null)
+                    LockSupport.unpark(thread);
+            }
+            callable = null;
         }
 
-        public E poll() {
-            E head = arr[rear];
-            rear = (rear + 1)%capacity;
-            size--;
-            return head;
+        private void runCallback(BiConsumer<Object, Throwable> callback) {
+            int s = state;
+            if (s == NORMAL)
+                callback.accept(outcome, null);
+            else if (s == EXCEPTIONAL)
+                callback.accept(null, (Throwable) outcome);
+            else
+                callback.accept(null, new CancellationException());
         }
 
-        public int size() {
-            return size;
+        // the final state, or a state <= COMPLETING after a timeout
+        private int awaitDone(boolean timed, long nanos) throws InterruptedException {
+            long deadline = timed ? System.nanoTime() + nanos : 0;
+            Waiter waiter = new Waiter(Thread.currentThread(), null);
+            if (!push(waiter))
+                return state;
+            while (true) {
+                int s = state;
+                if (s > COMPLETING) {
+                    waiter.thread = null;
+                    return s;
+                }
+                if (Thread.interrupted()) {
+                    removeWaiter(waiter);
+                    throw new InterruptedException();
+                }
+                if (timed) {
+                    nanos = deadline - System.nanoTime();
+                    if (nanos <= 0) {
+                        removeWaiter(waiter);
+                        return state;
+                    }
+                    LockSupport.parkNanos(this, nanos);
+                }
+                else {
+                    LockSupport.park(this);
+                }
+            }
         }
 
-        public boolean isEmpty() {
-            return (size == 0);
+        // unlinks waiter and every other thread that gave up waiting, as FutureTask.removeWaiter does.
+        // a race with another unlink or push starts the walk over
+        private void removeWaiter(Waiter waiter) {
+            waiter.thread = null;
+            retry:
+            while (true) {
+                Waiter pred = null;
+                for (Waiter q = waiters, next; q != null && q != COMPLETED; q = next) {
+                    next = q.next;
+                    if (q.thread != null || q.callback != null) {
+                        pred = q;
+                    }
+                    else if (pred != null) {
+                        pred.next = next;
+                        // pred gave up meanwhile, it may already be unlinked itself
+                        if (pred.thread == null && pred.callback == null)
+                            continue retry;
+                    }
+                    else if (!WAITERS.compareAndSet(this, q, next)) {
+                        continue retry;
+                    }
+                }
+                return;
+            }
         }
 
-        public boolean isFull() {
-            return (size == capacity);
+        private V report(int s) throws ExecutionException {
+            if (s == NORMAL)
+                return (V) outcome;
+            if (s >= CANCELLED)
+                throw new CancellationException();
+            throw new ExecutionException((Throwable) outcome);
         }
     }
 }
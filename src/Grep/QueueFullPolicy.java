@@ -0,0 +1,43 @@
+package Grep;
+
+import java.util.concurrent.TimeUnit;
+
+// what execute does with a task when the bounded task queue of a pool is full.
+// a pool thread that submits to its own full pool always runs the task itself under BLOCK and TIMED_OFFER,
+// waiting there could leave no thread to empty the queue
+final class QueueFullPolicy {
+
+    enum Action {
+        // RejectedExecutionException right away
+        ABORT,
+        // wait until a worker takes a task out of the queue
+        BLOCK,
+        // the submitting thread runs the task, which slows it down to the speed of the workers
+        CALLER_RUNS,
+        // wait up to timeoutNanos, then RejectedExecutionException
+        TIMED_OFFER
+    }
+
+    static final QueueFullPolicy ABORT = new QueueFullPolicy(Action.ABORT, 0);
+    static final QueueFullPolicy BLOCK = new QueueFullPolicy(Action.BLOCK, 0);
+    static final QueueFullPolicy CALLER_RUNS = new QueueFullPolicy(Action.CALLER_RUNS, 0);
+
+    final Action action;
+    final long timeoutNanos;
+
+    private QueueFullPolicy(Action action, long timeoutNanos) {
+        this.action = action;
+        this.timeoutNanos = timeoutNanos;
+    }
+
+    static QueueFullPolicy timedOffer(long timeout, TimeUnit unit) {
+        if (timeout < 0)
+            throw new IllegalArgumentException();
+        return new QueueFullPolicy(Action.TIMED_OFFER, unit.toNanos(timeout));
+    }
+
+    @Override
+    public String toString() {
+        return action == Action.TIMED_OFFER ? action + "(" + timeoutNanos + "ns)" : action.toString();
+    }
+}
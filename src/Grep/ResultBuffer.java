@@ -0,0 +1,60 @@
+package Grep;
+
+import java.util.Arrays;
+
+// growable byte buffer a worker thread formats its results into, reused for every file it handles
+class ResultBuffer {
+
+    private byte[] bytes = new byte[8 * 1024];
+    private int size = 0;
+
+    void reset() {
+        size = 0;
+    }
+
+    ResultBuffer append(byte[] value) {
+        ensureCapacity(value.length);
+        System.arraycopy(value, 0, bytes, size, value.length);
+        size += value.length;
+        return this;
+    }
+
+    ResultBuffer append(String value) {
+        return append(value.getBytes());
+    }
+
+    // writes the digits directly, no String is created per line number
+    ResultBuffer append(int value) {
+        ensureCapacity(11);
+        if (value < 0) {
+            bytes[size++] = '-';
+            value = -value;
+        }
+        int start = size;
+        do {
+            bytes[size++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        for (int i = start, j = size - 1; i < j; i++, j--) {
+            byte t = bytes[i];
+            bytes[i] = bytes[j];
+            bytes[j] = t;
+        }
+        return this;
+    }
+
+    ResultBuffer newLine() {
+        ensureCapacity(1);
+        bytes[size++] = '\n';
+        return this;
+    }
+
+    byte[] toByteArray() {
+        return Arrays.copyOf(bytes, size);
+    }
+
+    private void ensureCapacity(int extra) {
+        if (size + extra > bytes.length)
+            bytes = Arrays.copyOf(bytes, Math.max(2 * bytes.length, size + extra));
+    }
+}
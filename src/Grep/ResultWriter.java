@@ -0,0 +1,170 @@
+package Grep;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+// single writer stage for all results. workers hand over formatted blocks without locking
+// and the writer thread copies them into one large buffer that is written to stdout in one go.
+// in ordered mode blocks are emitted in input order: every file or directory gets a slot
+// when it is discovered and the writer walks the slot tree depth first. a task that fails still
+// writes an empty block, otherwise the output would stop at its slot until close
+class ResultWriter implements Runnable {
+
+    private static final int WRITE_BUFFER_SIZE = 1 << 20;
+
+    // place of a file or a directory in the output order
+    static class OutputSlot {
+        private volatile byte[] content;
+        private volatile OutputSlot[] children;
+
+        private boolean isReady() {
+            return content != null || children != null;
+        }
+    }
+
+    private boolean ordered;
+    private FileChannel outputChannel;
+    private ByteBuffer writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+    private Thread writerThread;
+    private volatile boolean closing = false;
+
+    // unordered mode
+    private Queue<byte[]> blocks = new ConcurrentLinkedQueue<>();
+    // ordered mode
+    private OutputSlot root = new OutputSlot();
+
+    ResultWriter(boolean ordered) {
+        this.ordered = ordered;
+        this.outputChannel = new FileOutputStream(FileDescriptor.out).getChannel();
+        this.writerThread = new Thread(this);
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    OutputSlot root() {
+        return root;
+    }
+
+    // slots of the entries of a directory, they come out in the order of the array
+    OutputSlot[] expand(OutputSlot slot, int numberOfChildren) {
+        OutputSlot[] children = new OutputSlot[numberOfChildren];
+        for (int i = 0; i < numberOfChildren; i++) {
+            children[i] = new OutputSlot();
+        }
+        if (ordered) {
+            slot.children = children;
+            LockSupport.unpark(writerThread);
+        }
+        return children;
+    }
+
+    void write(OutputSlot slot, byte[] content) {
+        if (ordered)
+            slot.content = content;
+        else
+            blocks.add(content);
+        LockSupport.unpark(writerThread);
+    }
+
+    // to be called once no more results are written, returns after everything is on stdout
+    void close() throws InterruptedException {
+        closing = true;
+        LockSupport.unpark(writerThread);
+        writerThread.join();
+    }
+
+    @Override
+    public void run() {
+        try {
+            if (ordered)
+                writeOrdered();
+            else
+                writeUnordered();
+            flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void writeUnordered() throws IOException {
+        while (true) {
+            // closing is read before the queue so nothing written before close() is missed
+            boolean lastRound = closing;
+            byte[] block;
+            while ((block = blocks.poll()) != null) {
+                append(block);
+            }
+            if (lastRound)
+                return;
+            flush();
+            LockSupport.park(this);
+        }
+    }
+
+    private void writeOrdered() throws IOException {
+        // cursor of the depth first walk, one array of siblings and the index of the next one per level
+        Deque<OutputSlot[]> siblings = new ArrayDeque<>();
+        Deque<Integer> nextIndexes = new ArrayDeque<>();
+        siblings.push(new OutputSlot[]{root});
+        nextIndexes.push(0);
+
+        while (!siblings.isEmpty()) {
+            int index = nextIndexes.peek();
+            if (index == siblings.peek().length) {
+                siblings.pop();
+                nextIndexes.pop();
+                continue;
+            }
+
+            OutputSlot slot = siblings.peek()[index];
+            boolean lastRound = closing;
+            if (!slot.isReady()) {
+                // a slot still empty after close belongs to a task that failed
+                if (!lastRound) {
+                    flush();
+                    LockSupport.park(this);
+                    continue;
+                }
+            }
+
+            nextIndexes.pop();
+            nextIndexes.push(index + 1);
+            // only the cursor holds the arrays of the directories it is in, a slot it passed can be collected
+            siblings.peek()[index] = null;
+            if (slot.content != null) {
+                append(slot.content);
+            } else if (slot.children != null) {
+                siblings.push(slot.children);
+                nextIndexes.push(0);
+            }
+        }
+    }
+
+    private void append(byte[] block) throws IOException {
+        if (block.length > writeBuffer.remaining()) {
+            flush();
+            if (block.length > writeBuffer.capacity()) {
+                ByteBuffer wrapped = ByteBuffer.wrap(block);
+                while (wrapped.hasRemaining())
+                    outputChannel.write(wrapped);
+                return;
+            }
+        }
+        writeBuffer.put(block);
+    }
+
+    private void flush() throws IOException {
+        writeBuffer.flip();
+        while (writeBuffer.hasRemaining())
+            outputChannel.write(writeBuffer);
+        writeBuffer.clear();
+    }
+}
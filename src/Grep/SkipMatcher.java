@@ -0,0 +1,47 @@
+package Grep;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+// base of the matchers that jump over text, newlines are only counted up to the next match
+abstract class SkipMatcher implements Matcher {
+
+    protected byte[] keyword;
+    protected int keywordLen;
+    // a match is reported on the line of its last byte
+    private int newlinesBeforeLastByte;
+
+    SkipMatcher(byte[] keyword) {
+        this.keyword = keyword;
+        this.keywordLen = keyword.length;
+        this.newlinesBeforeLastByte = ByteSearchUtils.countNewlines(keyword, 0, keywordLen - 1);
+    }
+
+    // returns the first match start in [from, lastStart] or -1
+    abstract int indexOf(ByteBuffer text, int from, int lastStart);
+
+    @Override
+    public int search(ByteBuffer text, int from, int ownedEnd, int limit, int lineNumber, MatchList matches) {
+        text.order(ByteOrder.LITTLE_ENDIAN);
+
+        int lastStart = Math.min(ownedEnd - 1, limit - keywordLen);
+        int line = lineNumber;
+        int countedUpTo = from;
+        int start = (from <= lastStart) ? indexOf(text, from, lastStart) : -1;
+        while (start != -1) {
+            line += ByteSearchUtils.countNewlines(text, countedUpTo, start);
+            countedUpTo = start;
+            matches.add(line + newlinesBeforeLastByte);
+            start = (start < lastStart) ? indexOf(text, start + 1, lastStart) : -1;
+        }
+        return line - lineNumber + ByteSearchUtils.countNewlines(text, countedUpTo, ownedEnd);
+    }
+
+    protected boolean matchesAt(ByteBuffer text, int start, int fromIndex, int toIndex) {
+        for (int j = fromIndex; j < toIndex; j++) {
+            if (text.get(start + j) != keyword[j])
+                return false;
+        }
+        return true;
+    }
+}
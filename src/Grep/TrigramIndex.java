@@ -0,0 +1,592 @@
+package Grep;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+// trigram -> file posting lists kept on disk, a query only scans files containing every trigram of a keyword.
+//
+// file layout (big endian):
+//   int MAGIC, int VERSION
+//   int numberOfFiles, per file: int pathLength, path bytes (UTF-8), long size, long lastModified
+//   int numberOfTrigrams, per trigram in ascending order: int trigram, long postingsOffset, int postingsLength
+//   postings, per trigram the file ids in ascending order as varint encoded gaps
+//
+// size and modification time of every file are stored, files that changed since the index was built
+// are always scanned, and an incremental build rescans only those. the postings of unchanged files are
+// copied from the previous index, the pairs of rescanned files go through sorted runs on disk, so a
+// build never holds more than one run of pairs in memory
+class TrigramIndex {
+
+    private static final int MAGIC = 0x54524749;
+    private static final int VERSION = 1;
+    private static final int TRIGRAM_ENTRY_SIZE = 4 + 8 + 4;
+    private static final int NUMBER_OF_TRIGRAMS = 1 << 24;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    // (trigram, file id) pairs sorted in memory before they are spilled as one run, 16 MB. the pairs of every
+    // file are already ascending, and the sort merges such runs through a buffer as large again
+    private static final int PAIRS_PER_RUN = 1 << 21;
+    // a file with more distinct trigrams is not listed, its trigrams are read back from the bit set in order
+    private static final int MAX_LISTED_TRIGRAMS = 1 << 16;
+    private static final ThreadLocal<FileTrigrams> FILE_TRIGRAMS = ThreadLocal.withInitial(FileTrigrams::new);
+
+    private static class IndexedFile {
+        private String path;
+        private long size;
+        private long lastModified;
+
+        IndexedFile(String path, long size, long lastModified) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+
+    private Map<String, Integer> fileIds = new HashMap<>();
+    private List<IndexedFile> files = new ArrayList<>();
+    // files that may contain one of the keywords, null if the keywords are too short to filter on
+    private BitSet candidateFiles;
+
+    private TrigramIndex() {
+    }
+
+    /*------------------------------- query --------------------------------*/
+
+    static TrigramIndex open(Path indexFile, byte[][] keywords) throws IOException {
+        TrigramIndex trigramIndex = new TrigramIndex();
+        try (FileChannel fileChannel = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(fileChannel)));
+            long trigramTableStart = trigramIndex.readHeaderAndFiles(in, indexFile);
+            int numberOfTrigrams = in.readInt();
+            trigramTableStart += 4;
+            long postingsStart = trigramTableStart + (long) numberOfTrigrams * TRIGRAM_ENTRY_SIZE;
+
+            MappedByteBuffer trigramTable = fileChannel.map(FileChannel.MapMode.READ_ONLY, trigramTableStart,
+                    (long) numberOfTrigrams * TRIGRAM_ENTRY_SIZE);
+            trigramIndex.candidateFiles = trigramIndex.findCandidates(fileChannel, trigramTable, numberOfTrigrams, postingsStart, keywords);
+        }
+        return trigramIndex;
+    }
+
+    // false if the index proves that the file contains none of the keywords
+    boolean mayContainMatch(Path path, BasicFileAttributes attributes) {
+        if (candidateFiles == null)
+            return true;
+        Integer fileId = fileIds.get(indexKey(path));
+        if (fileId == null)
+            return true;
+        IndexedFile indexedFile = files.get(fileId);
+        if (indexedFile.size != attributes.size() || indexedFile.lastModified != attributes.lastModifiedTime().toMillis())
+            return true;
+        return candidateFiles.get(fileId);
+    }
+
+    // union over keywords of the intersection of the postings of their trigrams
+    private BitSet findCandidates(FileChannel fileChannel, ByteBuffer trigramTable, int numberOfTrigrams, long postingsStart,
+                                  byte[][] keywords) throws IOException {
+        BitSet candidates = new BitSet(files.size());
+        for (byte[] keyword : keywords) {
+            // every file may contain a keyword shorter than a trigram
+            if (keyword.length < 3)
+                return null;
+
+            BitSet keywordCandidates = null;
+            for (int trigram : trigramsOf(keyword)) {
+                BitSet postings = new BitSet(files.size());
+                int entry = findTrigram(trigramTable, numberOfTrigrams, trigram);
+                if (entry != -1) {
+                    long offset = trigramTable.getLong(entry * TRIGRAM_ENTRY_SIZE + 4);
+                    int length = trigramTable.getInt(entry * TRIGRAM_ENTRY_SIZE + 12);
+                    decodePostings(fileChannel.map(FileChannel.MapMode.READ_ONLY, postingsStart + offset, length), postings);
+                }
+                if (keywordCandidates == null)
+                    keywordCandidates = postings;
+                else
+                    keywordCandidates.and(postings);
+                if (keywordCandidates.isEmpty())
+                    break;
+            }
+            candidates.or(keywordCandidates);
+        }
+        return candidates;
+    }
+
+    private static int findTrigram(ByteBuffer trigramTable, int numberOfTrigrams, int trigram) {
+        int low = 0;
+        int high = numberOfTrigrams - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int midTrigram = trigramTable.getInt(mid * TRIGRAM_ENTRY_SIZE);
+            if (midTrigram < trigram)
+                low = mid + 1;
+            else if (midTrigram > trigram)
+                high = mid - 1;
+            else
+                return mid;
+        }
+        return -1;
+    }
+
+    private static void decodePostings(ByteBuffer postings, BitSet fileIds) {
+        int fileId = 0;
+        while (postings.hasRemaining()) {
+            fileId += readVarint(postings);
+            fileIds.set(fileId);
+        }
+    }
+
+    /*------------------------------- build --------------------------------*/
+
+    // indexes all files below roots, files unchanged since a previous build of indexFile are not read again
+    static void build(Path indexFile, List<Path> roots, boolean recursive, int numberOfThreads) throws IOException, InterruptedException {
+        TrigramIndex foundFiles = new TrigramIndex();
+        for (Path root : roots) {
+            foundFiles.collectFiles(root, recursive, true);
+        }
+
+        Path directory = indexFile.toAbsolutePath().getParent();
+        String prefix = indexFile.getFileName() + ".";
+        Path temporaryFile = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        Path trigramTableFile = null;
+        Path postingsFile = null;
+        TrigramIndex trigramIndex = new TrigramIndex();
+        List<IndexedFile> changedFiles = new ArrayList<>();
+        try {
+            try (PreviousIndex previous = Files.exists(indexFile) ? PreviousIndex.open(indexFile) : new PreviousIndex();
+                 PairRuns pairRuns = new PairRuns(directory, prefix)) {
+                // unchanged files come first and keep the order of the previous index, so their old postings stay
+                // ascending once renumbered and sort before every file read now
+                int[] newFileIds = new int[previous.index.files.size()];
+                for (int oldFileId = 0; oldFileId < newFileIds.length; oldFileId++) {
+                    IndexedFile previousFile = previous.index.files.get(oldFileId);
+                    Integer foundFileId = foundFiles.fileIds.get(previousFile.path);
+                    IndexedFile foundFile = (foundFileId != null) ? foundFiles.files.get(foundFileId) : null;
+                    if (foundFile != null && foundFile.size == previousFile.size && foundFile.lastModified == previousFile.lastModified)
+                        newFileIds[oldFileId] = trigramIndex.addFile(foundFile);
+                    else
+                        newFileIds[oldFileId] = -1;
+                }
+                for (IndexedFile foundFile : foundFiles.files) {
+                    if (!trigramIndex.fileIds.containsKey(foundFile.path))
+                        changedFiles.add(foundFile);
+                }
+
+                AtomicReference<IOException> spillFailure = new AtomicReference<>();
+                ExecutorService executorService = new MyThreadPoolExecutorVersion1(numberOfThreads);
+                for (IndexedFile indexedFile : changedFiles) {
+                    executorService.execute(() -> {
+                        FileTrigrams trigrams = FILE_TRIGRAMS.get();
+                        try {
+                            trigrams.extract(Paths.get(indexedFile.path));
+                            // a file gets its id once it is read, so a file that fails to read leaves no gap
+                            synchronized (pairRuns) {
+                                pairRuns.add(trigrams, trigramIndex.addFile(indexedFile));
+                            }
+                        } catch (IOException e) {
+                            if (trigrams.isExtracted()) {
+                                spillFailure.compareAndSet(null, e);
+                            } else {
+                                // left out of the index, an entry without postings would hide every match in the file
+                                e.printStackTrace();
+                            }
+                        } finally {
+                            trigrams.clear();
+                        }
+                    });
+                }
+                executorService.shutdown();
+                executorService.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+                if (spillFailure.get() != null)
+                    throw spillFailure.get();
+                pairRuns.spill();
+
+                // the table is written after the trigram count, which is only known once the postings are merged
+                trigramTableFile = Files.createTempFile(directory, prefix, ".table.tmp");
+                postingsFile = Files.createTempFile(directory, prefix, ".postings.tmp");
+                int numberOfTrigrams;
+                try (DataOutputStream trigramTableOut = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(trigramTableFile)));
+                     OutputStream postingsOut = new BufferedOutputStream(Files.newOutputStream(postingsFile))) {
+                    numberOfTrigrams = mergePostings(previous, newFileIds, pairRuns, trigramTableOut, postingsOut);
+                }
+                trigramIndex.write(temporaryFile, numberOfTrigrams, trigramTableFile, postingsFile);
+            }
+            Files.move(temporaryFile, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporaryFile);
+            if (trigramTableFile != null)
+                Files.deleteIfExists(trigramTableFile);
+            if (postingsFile != null)
+                Files.deleteIfExists(postingsFile);
+        }
+
+        System.out.println("indexed " + trigramIndex.files.size() + " files, " + changedFiles.size() + " new or changed, into " + indexFile);
+    }
+
+    private void collectFiles(Path path, boolean recursive, boolean isRoot) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        if (attributes.isDirectory()) {
+            if (!isRoot && !recursive)
+                return;
+            try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(path)) {
+                for (Path child : directoryStream) {
+                    collectFiles(child, recursive, false);
+                }
+            }
+        } else {
+            String key = indexKey(path);
+            if (!fileIds.containsKey(key)) {
+                fileIds.put(key, files.size());
+                files.add(new IndexedFile(key, attributes.size(), attributes.lastModifiedTime().toMillis()));
+            }
+        }
+    }
+
+
+    private int addFile(IndexedFile indexedFile) {
+        int fileId = files.size();
+        fileIds.put(indexedFile.path, fileId);
+        files.add(indexedFile);
+        return fileId;
+    }
+
+    private static int[] trigramsOf(byte[] keyword) {
+        int[] trigrams = new int[keyword.length - 2];
+        for (int i = 0; i + 2 < keyword.length; i++) {
+            trigrams[i] = ((keyword[i] & 0xFF) << 16) | ((keyword[i + 1] & 0xFF) << 8) | (keyword[i + 2] & 0xFF);
+        }
+        return trigrams;
+    }
+
+
+    // writes the postings of every trigram in ascending order, the renumbered postings of the previous index
+    // first and then the pairs of the runs, which hold the higher ids of the files read now.
+    // returns the number of trigrams written to the table
+    private static int mergePostings(PreviousIndex previous, int[] newFileIds, PairRuns pairRuns,
+                                     DataOutputStream trigramTableOut, OutputStream postingsOut) throws IOException {
+        PriorityQueue<PairRun> runs = new PriorityQueue<>((run1, run2) -> Long.compare(run1.pair, run2.pair));
+        for (PairRun run : pairRuns.open()) {
+            if (run.next())
+                runs.add(run);
+        }
+
+        int numberOfTrigrams = 0;
+        int entry = 0;
+        long postingsSize = 0;
+        while (entry < previous.numberOfTrigrams || !runs.isEmpty()) {
+            int previousTrigram = (entry < previous.numberOfTrigrams) ? previous.trigramAt(entry) : Integer.MAX_VALUE;
+            int runTrigram = !runs.isEmpty() ? (int) (runs.peek().pair >>> 32) : Integer.MAX_VALUE;
+            int trigram = Math.min(previousTrigram, runTrigram);
+
+            long length = 0;
+            int previousFileId = 0;
+            if (previousTrigram == trigram) {
+                ByteBuffer postings = previous.postingsAt(entry++);
+                int oldFileId = 0;
+                while (postings.hasRemaining()) {
+                    oldFileId += readVarint(postings);
+                    int fileId = newFileIds[oldFileId];
+                    if (fileId != -1) {
+                        length += writeVarint(postingsOut, fileId - previousFileId);
+                        previousFileId = fileId;
+                    }
+                }
+            }
+            while (!runs.isEmpty() && (int) (runs.peek().pair >>> 32) == trigram) {
+                PairRun run = runs.poll();
+                int fileId = (int) run.pair;
+                length += writeVarint(postingsOut, fileId - previousFileId);
+                previousFileId = fileId;
+                if (run.next())
+                    runs.add(run);
+            }
+
+            // a trigram only the removed or changed files had is dropped
+            if (length == 0)
+                continue;
+            if (length > Integer.MAX_VALUE)
+                throw new IOException("postings of trigram " + trigram + " do not fit in an index entry");
+            trigramTableOut.writeInt(trigram);
+            trigramTableOut.writeLong(postingsSize);
+            trigramTableOut.writeInt((int) length);
+            postingsSize += length;
+            numberOfTrigrams++;
+        }
+        return numberOfTrigrams;
+    }
+
+    private void write(Path indexFile, int numberOfTrigrams, Path trigramTableFile, Path postingsFile) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(indexFile)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(files.size());
+            for (IndexedFile indexedFile : files) {
+                byte[] pathBytes = indexedFile.path.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(pathBytes.length);
+                out.write(pathBytes);
+                out.writeLong(indexedFile.size);
+                out.writeLong(indexedFile.lastModified);
+            }
+            out.writeInt(numberOfTrigrams);
+            Files.copy(trigramTableFile, out);
+            Files.copy(postingsFile, out);
+        }
+    }
+
+    // returns the number of bytes read
+    private long readHeaderAndFiles(DataInputStream in, Path indexFile) throws IOException {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION)
+            throw new IOException(indexFile + " : not a trigram index");
+        long bytesRead = 12;
+        int numberOfFiles = in.readInt();
+        for (int i = 0; i < numberOfFiles; i++) {
+            byte[] pathBytes = new byte[in.readInt()];
+            in.readFully(pathBytes);
+            String path = new String(pathBytes, StandardCharsets.UTF_8);
+            fileIds.put(path, i);
+            files.add(new IndexedFile(path, in.readLong(), in.readLong()));
+            bytesRead += 4 + pathBytes.length + 16;
+        }
+        return bytesRead;
+    }
+
+
+    // every trigram of one file once, reused by a build thread from file to file. the trigrams of a file are
+    // listed while there are few, so going through them and clearing them does not scan the whole bit set
+    private static class FileTrigrams {
+        private BitSet seen = new BitSet(NUMBER_OF_TRIGRAMS);
+        private int[] listed = new int[MAX_LISTED_TRIGRAMS];
+        private int count;
+        private boolean extracted;
+        // position in listed while going through a listed file
+        private int position;
+
+        void extract(Path path) throws IOException {
+            try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+                ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+                int trigram = 0;
+                long bytesSeen = 0;
+                while (fileChannel.read(buffer) != -1) {
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        trigram = ((trigram << 8) | (buffer.get() & 0xFF)) & (NUMBER_OF_TRIGRAMS - 1);
+                        if (++bytesSeen >= 3 && !seen.get(trigram)) {
+                            seen.set(trigram);
+                            if (count < MAX_LISTED_TRIGRAMS)
+                                listed[count] = trigram;
+                            count++;
+                        }
+                    }
+                    buffer.clear();
+                }
+            }
+            if (isListed())
+                Arrays.sort(listed, 0, count);
+            extracted = true;
+        }
+
+        boolean isExtracted() {
+            return extracted;
+        }
+
+        private boolean isListed() {
+            return count <= MAX_LISTED_TRIGRAMS;
+        }
+
+        // smallest trigram, -1 if there is none
+        int first() {
+            position = 0;
+            if (isListed())
+                return (count > 0) ? listed[position++] : -1;
+            return seen.nextSetBit(0);
+        }
+
+        // the trigram after the given one, -1 after the last
+        int next(int trigram) {
+            if (isListed())
+                return (position < count) ? listed[position++] : -1;
+            return seen.nextSetBit(trigram + 1);
+        }
+
+        void clear() {
+            if (isListed()) {
+                for (int i = 0; i < count; i++) {
+                    seen.clear(listed[i]);
+                }
+            } else {
+                seen.clear();
+            }
+            count = 0;
+            extracted = false;
+        }
+    }
+
+    // the index being replaced, its files and trigram table are read, its postings are copied entry by entry
+    private static class PreviousIndex implements Closeable {
+        private TrigramIndex index = new TrigramIndex();
+        private FileChannel fileChannel;
+        private ByteBuffer trigramTable;
+        private int numberOfTrigrams;
+        private long postingsStart;
+        private ByteBuffer postings = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+        static PreviousIndex open(Path indexFile) throws IOException {
+            PreviousIndex previous = new PreviousIndex();
+            previous.fileChannel = FileChannel.open(indexFile, StandardOpenOption.READ);
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(previous.fileChannel)));
+                long trigramTableStart = previous.index.readHeaderAndFiles(in, indexFile);
+                previous.numberOfTrigrams = in.readInt();
+                trigramTableStart += 4;
+                previous.postingsStart = trigramTableStart + (long) previous.numberOfTrigrams * TRIGRAM_ENTRY_SIZE;
+                previous.trigramTable = previous.fileChannel.map(FileChannel.MapMode.READ_ONLY, trigramTableStart,
+                        (long) previous.numberOfTrigrams * TRIGRAM_ENTRY_SIZE);
+            } catch (IOException | RuntimeException e) {
+                previous.close();
+                throw e;
+            }
+            return previous;
+        }
+
+        int trigramAt(int entry) {
+            return trigramTable.getInt(entry * TRIGRAM_ENTRY_SIZE);
+        }
+
+        // valid until the next call
+        ByteBuffer postingsAt(int entry) throws IOException {
+            long position = postingsStart + trigramTable.getLong(entry * TRIGRAM_ENTRY_SIZE + 4);
+            int length = trigramTable.getInt(entry * TRIGRAM_ENTRY_SIZE + 12);
+            if (postings.capacity() < length)
+                postings = ByteBuffer.allocate(Math.max(length, 2 * postings.capacity()));
+            postings.clear().limit(length);
+            while (postings.hasRemaining()) {
+                if (fileChannel.read(postings, position + postings.position()) == -1)
+                    throw new EOFException("postings of trigram " + trigramAt(entry) + " end past the index file");
+            }
+            return postings.flip();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (fileChannel != null)
+                fileChannel.close();
+        }
+    }
+
+    // (trigram << 32 | file id) pairs of the files read in this build, sorted run by run into temporary files
+    private static class PairRuns implements Closeable {
+        private Path directory;
+        private String prefix;
+        private long[] pairs = new long[PAIRS_PER_RUN];
+        private int count;
+        private List<Path> runFiles = new ArrayList<>();
+        private List<Long> runLengths = new ArrayList<>();
+        private List<PairRun> openRuns = new ArrayList<>();
+
+        PairRuns(Path directory, String prefix) {
+            this.directory = directory;
+            this.prefix = prefix;
+        }
+
+        void add(FileTrigrams trigrams, int fileId) throws IOException {
+            for (int trigram = trigrams.first(); trigram != -1; trigram = trigrams.next(trigram)) {
+                if (count == pairs.length)
+                    spill();
+                pairs[count++] = ((long) trigram << 32) | fileId;
+            }
+        }
+
+        void spill() throws IOException {
+            if (count == 0)
+                return;
+            Arrays.sort(pairs, 0, count);
+            Path runFile = Files.createTempFile(directory, prefix, ".run.tmp");
+            runFiles.add(runFile);
+            runLengths.add((long) count);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(runFile), READ_BUFFER_SIZE))) {
+                for (int i = 0; i < count; i++) {
+                    out.writeLong(pairs[i]);
+                }
+            }
+            count = 0;
+        }
+
+        List<PairRun> open() throws IOException {
+            // the pairs are all on disk by now
+            pairs = null;
+            for (int i = 0; i < runFiles.size(); i++) {
+                openRuns.add(new PairRun(new DataInputStream(new BufferedInputStream(Files.newInputStream(runFiles.get(i)), READ_BUFFER_SIZE)),
+                        runLengths.get(i)));
+            }
+            return openRuns;
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (PairRun run : openRuns) {
+                run.in.close();
+            }
+            for (Path runFile : runFiles) {
+                Files.deleteIfExists(runFile);
+            }
+        }
+    }
+
+    private static class PairRun {
+        private DataInputStream in;
+        private long remaining;
+        // the current pair, valid after next returned true
+        private long pair;
+
+        PairRun(DataInputStream in, long length) {
+            this.in = in;
+            this.remaining = length;
+        }
+
+        boolean next() throws IOException {
+            if (remaining == 0)
+                return false;
+            remaining--;
+            pair = in.readLong();
+            return true;
+        }
+    }
+
+    /*-------------------------------------------------------------------------------*/
+
+    private static String indexKey(Path path) {
+        return path.toAbsolutePath().normalize().toString();
+    }
+
+    // returns the number of bytes written
+    private static int writeVarint(OutputStream out, int value) throws IOException {
+        int length = 1;
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+            length++;
+        }
+        out.write(value);
+        return length;
+    }
+
+    private static int readVarint(ByteBuffer in) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.get();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+}
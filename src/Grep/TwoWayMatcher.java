@@ -0,0 +1,90 @@
+package Grep;
+
+import java.nio.ByteBuffer;
+
+// Crochemore-Perrin Two-Way, linear time with constant extra space whatever the alphabet.
+// the keyword is split at a critical factorization, the right part is matched first
+// and a mismatch there shifts the window past it
+class TwoWayMatcher extends SkipMatcher {
+
+    // last index of the left part of the factorization, -1 if it is empty
+    private int criticalPosition;
+    private int period;
+    // the left part is a suffix of the period, so after a full shift it does not need to be compared again
+    private boolean periodic;
+
+    TwoWayMatcher(byte[] keyword) {
+        super(keyword);
+        int[] forward = maximalSuffix(keyword, false);
+        int[] reverse = maximalSuffix(keyword, true);
+        if (forward[0] > reverse[0]) {
+            criticalPosition = forward[0];
+            period = forward[1];
+        } else {
+            criticalPosition = reverse[0];
+            period = reverse[1];
+        }
+
+        periodic = criticalPosition + 1 + period <= keywordLen;
+        for (int i = 0; periodic && i <= criticalPosition; i++) {
+            if (keyword[i] != keyword[i + period])
+                periodic = false;
+        }
+        if (!periodic)
+            period = Math.max(criticalPosition + 1, keywordLen - criticalPosition - 1) + 1;
+    }
+
+    // returns {start of maximal suffix - 1, period of that suffix} for the byte order or its reverse
+    private static int[] maximalSuffix(byte[] keyword, boolean reverse) {
+        int ms = -1;
+        int j = 0;
+        int k = 1;
+        int p = 1;
+        while (j + k < keyword.length) {
+            int a = keyword[j + k] & 0xFF;
+            int b = keyword[ms + k] & 0xFF;
+            if (reverse ? a > b : a < b) {
+                j += k;
+                k = 1;
+                p = j - ms;
+            } else if (a == b) {
+                if (k != p) {
+                    k++;
+                } else {
+                    j += p;
+                    k = 1;
+                }
+            } else {
+                ms = j;
+                j = ms + 1;
+                k = p = 1;
+            }
+        }
+        return new int[]{ms, p};
+    }
+
+    @Override
+    int indexOf(ByteBuffer text, int from, int lastStart) {
+        int start = from;
+        int memory = -1;
+        while (start <= lastStart) {
+            int i = Math.max(criticalPosition, memory) + 1;
+            while (i < keywordLen && keyword[i] == text.get(start + i))
+                i++;
+            if (i < keywordLen) {
+                start += i - criticalPosition;
+                memory = -1;
+                continue;
+            }
+
+            i = criticalPosition;
+            while (i > memory && keyword[i] == text.get(start + i))
+                i--;
+            if (i <= memory)
+                return start;
+            start += period;
+            memory = periodic ? keywordLen - period - 1 : -1;
+        }
+        return -1;
+    }
+}
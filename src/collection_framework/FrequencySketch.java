@@ -0,0 +1,81 @@
+package collection_framework;
+
+// approximate access counts for the admission policy of MyCache: a count-min sketch of 4 bit counters,
+// sixteen to a long. every key has one counter in each of four longs and its frequency is the smallest
+// of the four. once 10 * table size increments are counted all counters are halved, so old popularity fades.
+// the table starts small and grows with the number of entries, as in caffeine, so a cache bounded by a large
+// weight does not allocate it up front.
+// not thread safe, MyCache only uses it under its eviction lock
+final class FrequencySketch {
+
+    private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final int MAXIMUM_TABLE_SIZE = 1 << 24;
+
+    private long[] table = new long[16];
+    private int sampleSize = 10 * table.length;
+    private int size;
+
+    // one counter set per expected entry, a grown table starts counting from zero again
+    void ensureCapacity(long expectedSize) {
+        if (table.length >= expectedSize || table.length == MAXIMUM_TABLE_SIZE)
+            return;
+        int tableSize = table.length;
+        while (tableSize < MAXIMUM_TABLE_SIZE && tableSize < expectedSize)
+            tableSize *= 2;
+        table = new long[tableSize];
+        sampleSize = 10 * tableSize;
+        size = 0;
+    }
+
+    // 0 to 15
+    int frequency(Object key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < 4; i++) {
+            long counters = table[indexOf(hash, i)];
+            frequency = Math.min(frequency, (int) ((counters >>> ((start + i) << 2)) & 0xfL));
+        }
+        return frequency;
+    }
+
+    void increment(Object key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            added |= incrementAt(indexOf(hash, i), start + i);
+        }
+        if (added && ++size == sampleSize)
+            reset();
+    }
+
+    // counter j (0 to 15) of table[i], saturating at 15
+    private boolean incrementAt(int i, int j) {
+        int offset = j << 2;
+        long mask = 0xfL << offset;
+        if ((table[i] & mask) == mask)
+            return false;
+        table[i] += 1L << offset;
+        return true;
+    }
+
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        size /= 2;
+    }
+
+    private int indexOf(int hash, int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += h >>> 32;
+        return (int) h & (table.length - 1);
+    }
+
+    private static int spread(int hash) {
+        int h = hash * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,169 @@
+package collection_framework;
+
+import java.util.List;
+import java.util.Map;
+
+// balanced (AVL) tree for a hash bin that collected too many keys, ordered by hash and then by compareTo
+// when both keys are of the same Comparable class. keys that can not be ordered are searched on both sides.
+// insert and remove copy the nodes on the path and return a new root, a reader holding an older root
+// still sees a consistent tree, so MyConcurrentHashMap can read tree bins without a lock
+final class HashTree {
+
+    static final class Node<K,V> implements Map.Entry<K,V> {
+        private final int hash;
+        private final K key;
+        private volatile V value;
+        private final Node<K,V> left;
+        private final Node<K,V> right;
+        private final int height;
+
+        Node(int hash, K key, V value, Node<K,V> left, Node<K,V> right) {
+            this.hash = hash;
+            this.key = key;
+            this.value = value;
+            this.left = left;
+            this.right = right;
+            this.height = Math.max(heightOf(left), heightOf(right)) + 1;
+        }
+
+        @Override
+        public K getKey() {
+            return key;
+        }
+
+        @Override
+        public V getValue() {
+            return value;
+        }
+
+        @Override
+        public V setValue(V newValue) {
+            V oldValue = value;
+            value = newValue;
+            return oldValue;
+        }
+    }
+
+    // result of compare for different keys with no order between them
+    private static final int UNORDERED = Integer.MIN_VALUE;
+
+    private HashTree() {
+    }
+
+    static <K,V> Node<K,V> find(Node<K,V> root, int hash, Object key) {
+        Node<K,V> node = root;
+        while (node != null) {
+            int comparison = compare(hash, key, node);
+            if (comparison == 0)
+                return node;
+            if (comparison == UNORDERED) {
+                Node<K,V> found = find(node.left, hash, key);
+                return (found != null) ? found : find(node.right, hash, key);
+            }
+            node = (comparison < 0) ? node.left : node.right;
+        }
+        return null;
+    }
+
+    // key must not be in the tree yet
+    static <K,V> Node<K,V> insert(Node<K,V> root, int hash, K key, V value) {
+        if (root == null)
+            return new Node<>(hash, key, value, null, null);
+        int comparison = compare(hash, key, root);
+        if (comparison == UNORDERED)
+            comparison = tieBreak(key, root.key);
+        if (comparison < 0)
+            return balance(root, insert(root.left, hash, key, value), root.right);
+        return balance(root, root.left, insert(root.right, hash, key, value));
+    }
+
+    // returns root itself when key is not in the tree
+    static <K,V> Node<K,V> remove(Node<K,V> root, int hash, Object key) {
+        if (root == null)
+            return null;
+        int comparison = compare(hash, key, root);
+        if (comparison == 0) {
+            if (root.left == null)
+                return root.right;
+            if (root.right == null)
+                return root.left;
+            Node<K,V> successor = root.right;
+            while (successor.left != null)
+                successor = successor.left;
+            return balance(successor, root.left, removeFirst(root.right));
+        }
+        if (comparison == -1) {
+            Node<K,V> left = remove(root.left, hash, key);
+            return (left != root.left) ? balance(root, left, root.right) : root;
+        }
+        if (comparison == UNORDERED) {
+            Node<K,V> left = remove(root.left, hash, key);
+            if (left != root.left)
+                return balance(root, left, root.right);
+        }
+        Node<K,V> right = remove(root.right, hash, key);
+        return (right != root.right) ? balance(root, root.left, right) : root;
+    }
+
+    // adds the entries in tree order
+    static <K,V> void collect(Node<K,V> root, List<? super Node<K,V>> nodes) {
+        if (root == null)
+            return;
+        collect(root.left, nodes);
+        nodes.add(root);
+        collect(root.right, nodes);
+    }
+
+    private static <K,V> Node<K,V> removeFirst(Node<K,V> root) {
+        if (root.left == null)
+            return root.right;
+        return balance(root, removeFirst(root.left), root.right);
+    }
+
+    // copy of node with the given children, rotated if their heights differ by more than one
+    private static <K,V> Node<K,V> balance(Node<K,V> node, Node<K,V> left, Node<K,V> right) {
+        if (heightOf(left) > heightOf(right) + 1) {
+            if (heightOf(left.left) >= heightOf(left.right))
+                return copy(left, left.left, copy(node, left.right, right));
+            return copy(left.right, copy(left, left.left, left.right.left), copy(node, left.right.right, right));
+        }
+        if (heightOf(right) > heightOf(left) + 1) {
+            if (heightOf(right.right) >= heightOf(right.left))
+                return copy(right, copy(node, left, right.left), right.right);
+            return copy(right.left, copy(node, left, right.left.left), copy(right, right.left.right, right.right));
+        }
+        return copy(node, left, right);
+    }
+
+    private static <K,V> Node<K,V> copy(Node<K,V> node, Node<K,V> left, Node<K,V> right) {
+        return new Node<>(node.hash, node.key, node.value, left, right);
+    }
+
+    private static int heightOf(Node<?,?> node) {
+        return (node == null) ? 0 : node.height;
+    }
+
+    // -1, 0, 1 or UNORDERED
+    private static int compare(int hash, Object key, Node<?,?> node) {
+        if (hash != node.hash)
+            return (hash < node.hash) ? -1 : 1;
+        if (key == node.key || (key != null && key.equals(node.key)))
+            return 0;
+        if (key instanceof Comparable && node.key != null && key.getClass() == node.key.getClass()) {
+            int comparison = ((Comparable<Object>) key).compareTo(node.key);
+            if (comparison != 0)
+                return (comparison < 0) ? -1 : 1;
+        }
+        return UNORDERED;
+    }
+
+    // any fixed order will do, it only decides the side of a new key
+    private static int tieBreak(Object key, Object otherKey) {
+        if (key != null && otherKey != null) {
+            int comparison = key.getClass().getName().compareTo(otherKey.getClass().getName());
+            if (comparison != 0)
+                return comparison;
+        }
+        return (System.identityHashCode(key) <= System.identityHashCode(otherKey)) ? -1 : 1;
+    }
+}
@@ -0,0 +1,212 @@
+package collection_framework;
+
+import java.util.Arrays;
+
+// MyOpenHashMap for int keys without boxing: keys are kept in an int array next to an array of values,
+// so get, put and remove do not allocate. key 0 marks an empty slot and is kept apart from the table.
+// a missing key is reported with noEntryValue (null unless given to the constructor)
+public class IntObjectMap<V> {
+
+    // called once per entry by forEach
+    public interface EntryConsumer<V> {
+        void accept(int key, V value);
+    }
+
+    static private final int DEFAULT_CAPACITY = 16;
+    static private final float DEFAULT_LOADFACTOR = 0.75f;
+
+    private int numberOfSlots;        // table size, a power of two
+    private float loadFactor;
+    private int numberOfNodes;        // entries in the table, key 0 not included
+    private int keys[];
+    private Object values[];
+
+    private boolean hasZeroKey;
+    private V zeroKeyValue;
+    private final V noEntryValue;
+
+    /* constructors */
+
+    public IntObjectMap() {
+        this(null);
+    }
+
+    public IntObjectMap(V noEntryValue) {
+        this.noEntryValue = noEntryValue;
+        this.loadFactor = DEFAULT_LOADFACTOR;
+        allocate(DEFAULT_CAPACITY);
+    }
+
+    private void allocate(int slots) {
+        this.numberOfSlots = slots;
+        this.keys = new int[slots];
+        this.values = new Object[slots];
+    }
+
+    public V getNoEntryValue() {
+        return noEntryValue;
+    }
+
+    public int size() {
+        return numberOfNodes + (hasZeroKey ? 1 : 0);
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public boolean containsKey(int key) {
+        if (key == 0)
+            return hasZeroKey;
+        return findSlot(key) != -1;
+    }
+
+    public V get(int key) {
+        if (key == 0)
+            return hasZeroKey ? zeroKeyValue : noEntryValue;
+        int slot = findSlot(key);
+        return (slot == -1) ? noEntryValue : (V) values[slot];
+    }
+
+    // returns the previous value or noEntryValue
+    public V put(int key, V value) {
+        if (key == 0) {
+            V oldValue = hasZeroKey ? zeroKeyValue : noEntryValue;
+            hasZeroKey = true;
+            zeroKeyValue = value;
+            return oldValue;
+        }
+
+        int slot = findSlot(key);
+        if (slot != -1) {
+            V oldValue = (V) values[slot];
+            values[slot] = value;
+            return oldValue;
+        }
+
+        insert(key, value);
+        numberOfNodes++;
+        if (numberOfNodes > (int) (loadFactor * numberOfSlots))
+            rehash();
+        return noEntryValue;
+    }
+
+    // returns the removed value or noEntryValue
+    public V remove(int key) {
+        if (key == 0) {
+            V oldValue = hasZeroKey ? zeroKeyValue : noEntryValue;
+            hasZeroKey = false;
+            zeroKeyValue = null;
+            return oldValue;
+        }
+
+        int slot = findSlot(key);
+        if (slot == -1)
+            return noEntryValue;
+        V oldValue = (V) values[slot];
+        removeSlot(slot);
+        return oldValue;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, 0);
+        Arrays.fill(values, null);
+        numberOfNodes = 0;
+        hasZeroKey = false;
+        zeroKeyValue = null;
+    }
+
+    // the map must not be changed by action
+    public void forEach(EntryConsumer<? super V> action) {
+        if (hasZeroKey)
+            action.accept(0, zeroKeyValue);
+        for (int slot = 0; slot < numberOfSlots; slot++) {
+            if (keys[slot] != 0)
+                action.accept(keys[slot], (V) values[slot]);
+        }
+    }
+
+    /* helper methods */
+
+    // mixes the bits of the key, the slot only uses the low bits
+    private int hashOf(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private int distanceFromHome(int slot) {
+        return (slot - hashOf(keys[slot])) & (numberOfSlots - 1);
+    }
+
+    private int findSlot(int key) {
+        int mask = numberOfSlots - 1;
+        for (int slot = hashOf(key) & mask, distance = 0; ; slot = (slot + 1) & mask, distance++) {
+            if (keys[slot] == key)
+                return slot;
+            if (keys[slot] == 0 || distanceFromHome(slot) < distance)
+                return -1;
+        }
+    }
+
+    // robin hood insert, key must not be in the table yet
+    private void insert(int key, Object value) {
+        int mask = numberOfSlots - 1;
+        for (int slot = hashOf(key) & mask, distance = 0; ; slot = (slot + 1) & mask, distance++) {
+            if (keys[slot] == 0) {
+                keys[slot] = key;
+                values[slot] = value;
+                return;
+            }
+            int slotDistance = distanceFromHome(slot);
+            if (slotDistance < distance) {
+                int slotKey = keys[slot];
+                Object slotValue = values[slot];
+                keys[slot] = key;
+                values[slot] = value;
+                key = slotKey;
+                value = slotValue;
+                distance = slotDistance;
+            }
+        }
+    }
+
+    // backward shift deletion
+    private void removeSlot(int slot) {
+        int mask = numberOfSlots - 1;
+        int next = (slot + 1) & mask;
+        while (keys[next] != 0 && distanceFromHome(next) > 0) {
+            keys[slot] = keys[next];
+            values[slot] = values[next];
+            slot = next;
+            next = (next + 1) & mask;
+        }
+        keys[slot] = 0;
+        values[slot] = null;
+        numberOfNodes--;
+    }
+
+    private void rehash() {
+        int[] oldKeys = keys;
+        Object[] oldValues = values;
+
+        allocate(2 * numberOfSlots);
+        for (int slot = 0; slot < oldKeys.length; slot++) {
+            if (oldKeys[slot] != 0)
+                insert(oldKeys[slot], oldValues[slot]);
+        }
+    }
+
+    /* content display method */
+
+    public void display() {
+        System.out.println("Hash Table key-value:  | size : " + size() + " | capacity : " + numberOfSlots);
+        if (hasZeroKey)
+            System.out.println("zero key : (0 " + zeroKeyValue + ")");
+        for (int slot = 0; slot < numberOfSlots; slot++) {
+            System.out.print(slot + " : ");
+            if (keys[slot] != 0)
+                System.out.print("(" + keys[slot] + " " + values[slot] + ") ");
+            System.out.println();
+        }
+    }
+}
@@ -0,0 +1,467 @@
+package collection_framework;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+// bounded cache on top of MyConcurrentHashMap. entries are weighed and the total weight is kept under
+// maximumWeight with W-TinyLFU: a new entry first goes to a small LRU window (1% of the weight), entries
+// leaving the window enter the main space only if a FrequencySketch says they are used more often than the
+// LRU victim of its probation segment, and a second hit in probation moves an entry to the protected segment
+// (80% of the main space). entries can also expire some time after their write or their last access.
+//
+// reads do not lock: they are recorded in a lossy StripedReadBuffer and replayed against the policy in
+// batches by whoever holds the eviction lock. writes update the map first and then the policy under the lock.
+public class MyCache<K,V> {
+
+    public interface Weigher<K,V> {
+        // not negative, must not change while the entry is in the cache
+        int weigh(K key, V value);
+    }
+
+    // every put creates a new node, so key, value, weight and write time never change
+    private static final class CacheNode<K,V> {
+        private final K key;
+        private final V value;
+        private final int weight;
+        private final long writeTime;
+        private volatile long accessTime;
+
+        // guarded by evictionLock
+        private int queue = NEW;
+        private CacheNode<K,V> prevInAccessOrder;
+        private CacheNode<K,V> nextInAccessOrder;
+        private CacheNode<K,V> prevInWriteOrder;
+        private CacheNode<K,V> nextInWriteOrder;
+
+        CacheNode(K key, V value, int weight, long now) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+            this.writeTime = now;
+            this.accessTime = now;
+        }
+    }
+
+    // doubly linked list threaded through the nodes, in access order or in write order
+    private static final class NodeDeque<K,V> {
+        private final boolean writeOrder;
+        private CacheNode<K,V> first;
+        private CacheNode<K,V> last;
+
+        NodeDeque(boolean writeOrder) {
+            this.writeOrder = writeOrder;
+        }
+
+        CacheNode<K,V> peekFirst() {
+            return first;
+        }
+
+        void addLast(CacheNode<K,V> node) {
+            setPrev(node, last);
+            setNext(node, null);
+            if (last == null)
+                first = node;
+            else
+                setNext(last, node);
+            last = node;
+        }
+
+        void remove(CacheNode<K,V> node) {
+            CacheNode<K,V> prev = prev(node);
+            CacheNode<K,V> next = next(node);
+            if (prev == null)
+                first = next;
+            else
+                setNext(prev, next);
+            if (next == null)
+                last = prev;
+            else
+                setPrev(next, prev);
+            setPrev(node, null);
+            setNext(node, null);
+        }
+
+        void moveToBack(CacheNode<K,V> node) {
+            if (node != last) {
+                remove(node);
+                addLast(node);
+            }
+        }
+
+        private CacheNode<K,V> prev(CacheNode<K,V> node) {
+            return writeOrder ? node.prevInWriteOrder : node.prevInAccessOrder;
+        }
+
+        private CacheNode<K,V> next(CacheNode<K,V> node) {
+            return writeOrder ? node.nextInWriteOrder : node.nextInAccessOrder;
+        }
+
+        private void setPrev(CacheNode<K,V> node, CacheNode<K,V> prev) {
+            if (writeOrder)
+                node.prevInWriteOrder = prev;
+            else
+                node.prevInAccessOrder = prev;
+        }
+
+        private void setNext(CacheNode<K,V> node, CacheNode<K,V> next) {
+            if (writeOrder)
+                node.nextInWriteOrder = next;
+            else
+                node.nextInAccessOrder = next;
+        }
+    }
+
+    // queue of a node: not linked yet, one of the three segments, or out of the cache for good
+    private static final int NEW = 0;
+    private static final int WINDOW = 1;
+    private static final int PROBATION = 2;
+    private static final int PROTECTED = 3;
+    private static final int RETIRED = 4;
+
+    private static final double WINDOW_SHARE = 0.01;
+    private static final double PROTECTED_SHARE = 0.8;
+
+    private final MyConcurrentHashMap<K, CacheNode<K,V>> data;
+    private final Weigher<? super K, ? super V> weigher;
+    private final long maximumWeight;
+    private final long windowMaximum;
+    private final long mainMaximum;
+    private final long protectedMaximum;
+    private final long expireAfterWriteNanos;       // 0 for never
+    private final long expireAfterAccessNanos;      // 0 for never
+
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final StripedReadBuffer<CacheNode<K,V>> readBuffer = new StripedReadBuffer<>();
+    private final FrequencySketch sketch;
+
+    // guarded by evictionLock
+    private final NodeDeque<K,V> window = new NodeDeque<>(false);
+    private final NodeDeque<K,V> probation = new NodeDeque<>(false);
+    private final NodeDeque<K,V> protectedSegment = new NodeDeque<>(false);
+    private final NodeDeque<K,V> writeOrder = new NodeDeque<>(true);
+    private long windowWeight;
+    private long mainWeight;
+    private long protectedWeight;
+    // entries in the segments, the sketch is sized by it
+    private long policySize;
+    private volatile long weightedSize;
+
+    private final StripedCounter hits = new StripedCounter();
+    private final StripedCounter misses = new StripedCounter();
+    private volatile long evictionCount;
+    private volatile long evictionWeight;
+
+    /* constructors */
+
+    // at most maximumSize entries, no expiry
+    public MyCache(long maximumSize) {
+        this(maximumSize, null, 0, 0, TimeUnit.NANOSECONDS);
+    }
+
+    // weigher null weighs every entry 1, an expiry of 0 never expires
+    public MyCache(long maximumWeight, Weigher<? super K, ? super V> weigher,
+                   long expireAfterWrite, long expireAfterAccess, TimeUnit unit) {
+        if (maximumWeight < 0 || expireAfterWrite < 0 || expireAfterAccess < 0)
+            throw new IllegalArgumentException();
+        this.weigher = weigher;
+        this.maximumWeight = maximumWeight;
+        this.windowMaximum = maximumWeight - (long) (maximumWeight * (1 - WINDOW_SHARE));
+        this.mainMaximum = maximumWeight - windowMaximum;
+        this.protectedMaximum = (long) (mainMaximum * PROTECTED_SHARE);
+        this.expireAfterWriteNanos = unit.toNanos(expireAfterWrite);
+        this.expireAfterAccessNanos = unit.toNanos(expireAfterAccess);
+        this.sketch = new FrequencySketch();
+        this.data = new MyConcurrentHashMap<>((int) Math.min(maximumWeight, 1 << 16));
+    }
+
+    public V get(K key) {
+        CacheNode<K,V> node = data.get(key);
+        if (node == null) {
+            misses.add(1);
+            return null;
+        }
+        long now = now();
+        if (isExpired(node, now)) {
+            misses.add(1);
+            evictionLock.lock();
+            try {
+                evict(node);
+            }
+            finally {
+                evictionLock.unlock();
+            }
+            return null;
+        }
+
+        if (expireAfterAccessNanos > 0)
+            node.accessTime = now;
+        hits.add(1);
+        if (!readBuffer.offer(node))
+            tryMaintenance();
+        return node.value;
+    }
+
+    // returns the previous value, null if there was none or it had expired
+    public V put(K key, V value) {
+        if (key == null || value == null)
+            throw new NullPointerException();
+        int weight = (weigher == null) ? 1 : weigher.weigh(key, value);
+        if (weight < 0)
+            throw new IllegalArgumentException("negative weight");
+
+        long now = now();
+        CacheNode<K,V> node = new CacheNode<>(key, value, weight, now);
+        CacheNode<K,V> previous = data.put(key, node);
+        evictionLock.lock();
+        try {
+            if (previous != null)
+                unlink(previous);
+            // a later put or a remove of the key may have got the lock first
+            if (node.queue == NEW)
+                link(node);
+            sketch.increment(key);
+            maintenance(now);
+        }
+        finally {
+            evictionLock.unlock();
+        }
+        return (previous == null || isExpired(previous, now)) ? null : previous.value;
+    }
+
+    public V remove(K key) {
+        CacheNode<K,V> node = data.remove(key);
+        if (node == null)
+            return null;
+        evictionLock.lock();
+        try {
+            unlink(node);
+        }
+        finally {
+            evictionLock.unlock();
+        }
+        return isExpired(node, now()) ? null : node.value;
+    }
+
+    public void clear() {
+        evictionLock.lock();
+        try {
+            List<Map.Entry<K, CacheNode<K,V>>> entries = new ArrayList<>();
+            for (Map.Entry<K, CacheNode<K,V>> entry : data.entrySet()) {
+                entries.add(entry);
+            }
+            for (Map.Entry<K, CacheNode<K,V>> entry : entries) {
+                if (data.remove(entry.getKey(), entry.getValue()))
+                    unlink(entry.getValue());
+            }
+            readBuffer.drainTo(node -> { });
+        }
+        finally {
+            evictionLock.unlock();
+        }
+    }
+
+    // replays the buffered reads and evicts now instead of on the next write
+    public void cleanUp() {
+        evictionLock.lock();
+        try {
+            maintenance(now());
+        }
+        finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /* statistics */
+
+    // entries in the map, expired ones not removed yet included
+    public long estimatedSize() {
+        return data.mappingCount();
+    }
+
+    public long weightedSize() {
+        return weightedSize;
+    }
+
+    public long hitCount() {
+        return hits.sum();
+    }
+
+    public long missCount() {
+        return misses.sum();
+    }
+
+    // 1 before the first read
+    public double hitRate() {
+        long hitCount = hits.sum();
+        long requestCount = hitCount + misses.sum();
+        return (requestCount == 0) ? 1.0 : (double) hitCount / requestCount;
+    }
+
+    // entries removed by the size bound or by expiry
+    public long evictionCount() {
+        return evictionCount;
+    }
+
+    public long evictionWeight() {
+        return evictionWeight;
+    }
+
+    /* helper methods, all but now and isExpired called with evictionLock held */
+
+    private long now() {
+        return (expireAfterWriteNanos > 0 || expireAfterAccessNanos > 0) ? System.nanoTime() : 0;
+    }
+
+    private boolean isExpired(CacheNode<K,V> node, long now) {
+        return (expireAfterWriteNanos > 0 && now - node.writeTime >= expireAfterWriteNanos)
+                || (expireAfterAccessNanos > 0 && now - node.accessTime >= expireAfterAccessNanos);
+    }
+
+    private void tryMaintenance() {
+        if (evictionLock.tryLock()) {
+            try {
+                maintenance(now());
+            }
+            finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+    private void maintenance(long now) {
+        readBuffer.drainTo(this::onAccess);
+        expireEntries(now);
+        evictEntries();
+    }
+
+    private void onAccess(CacheNode<K,V> node) {
+        if (node.queue == NEW || node.queue == RETIRED)
+            return;
+        sketch.increment(node.key);
+        if (node.queue == WINDOW) {
+            window.moveToBack(node);
+        }
+        else if (node.queue == PROBATION) {
+            probation.remove(node);
+            protectedSegment.addLast(node);
+            node.queue = PROTECTED;
+            protectedWeight += node.weight;
+            // the protected segment overflows back into probation
+            while (protectedWeight > protectedMaximum) {
+                CacheNode<K,V> demoted = protectedSegment.peekFirst();
+                protectedSegment.remove(demoted);
+                probation.addLast(demoted);
+                demoted.queue = PROBATION;
+                protectedWeight -= demoted.weight;
+            }
+        }
+        else {
+            protectedSegment.moveToBack(node);
+        }
+    }
+
+    private void link(CacheNode<K,V> node) {
+        window.addLast(node);
+        if (expireAfterWriteNanos > 0)
+            writeOrder.addLast(node);
+        node.queue = WINDOW;
+        windowWeight += node.weight;
+        weightedSize += node.weight;
+        sketch.ensureCapacity(++policySize);
+    }
+
+    // takes node out of the policy, it is no longer or will soon no longer be in the map
+    private void unlink(CacheNode<K,V> node) {
+        int queue = node.queue;
+        node.queue = RETIRED;
+        if (queue == NEW || queue == RETIRED)
+            return;
+
+        if (queue == WINDOW) {
+            window.remove(node);
+            windowWeight -= node.weight;
+        }
+        else {
+            (queue == PROBATION ? probation : protectedSegment).remove(node);
+            mainWeight -= node.weight;
+            if (queue == PROTECTED)
+                protectedWeight -= node.weight;
+        }
+        if (expireAfterWriteNanos > 0)
+            writeOrder.remove(node);
+        weightedSize -= node.weight;
+        policySize--;
+    }
+
+    private void evict(CacheNode<K,V> node) {
+        // the key may have been written again meanwhile, the new node stays
+        if (data.remove(node.key, node)) {
+            evictionCount++;
+            evictionWeight += node.weight;
+        }
+        unlink(node);
+    }
+
+    private void expireEntries(long now) {
+        if (expireAfterAccessNanos > 0) {
+            for (NodeDeque<K,V> deque : List.of(window, probation, protectedSegment)) {
+                CacheNode<K,V> node;
+                while ((node = deque.peekFirst()) != null && now - node.accessTime >= expireAfterAccessNanos)
+                    evict(node);
+            }
+        }
+        if (expireAfterWriteNanos > 0) {
+            CacheNode<K,V> node;
+            while ((node = writeOrder.peekFirst()) != null && now - node.writeTime >= expireAfterWriteNanos)
+                evict(node);
+        }
+    }
+
+    // entries leaving the window compete with the LRU end of probation for room in the main space
+    private void evictEntries() {
+        while (windowWeight > windowMaximum) {
+            CacheNode<K,V> candidate = window.peekFirst();
+            window.remove(candidate);
+            windowWeight -= candidate.weight;
+            probation.addLast(candidate);
+            candidate.queue = PROBATION;
+            mainWeight += candidate.weight;
+
+            while (mainWeight > mainMaximum) {
+                CacheNode<K,V> victim = probation.peekFirst();
+                if (victim == candidate)
+                    victim = protectedSegment.peekFirst();
+                if (victim == null || sketch.frequency(candidate.key) <= sketch.frequency(victim.key)) {
+                    evict(candidate);
+                    break;
+                }
+                evict(victim);
+            }
+        }
+    }
+
+    /* content display method */
+
+    public void display() {
+        evictionLock.lock();
+        try {
+            System.out.println("Cache :  | size : " + estimatedSize() + " | weight : " + weightedSize + " / " + maximumWeight
+                    + " | hits : " + hitCount() + " | misses : " + missCount() + " | evictions : " + evictionCount);
+            String[] names = {"window", "probation", "protected"};
+            NodeDeque<K,V>[] deques = new NodeDeque[]{window, probation, protectedSegment};
+            for (int i = 0; i < deques.length; i++) {
+                System.out.print(names[i] + " : ");
+                for (CacheNode<K,V> node = deques[i].peekFirst(); node != null; node = node.nextInAccessOrder) {
+                    System.out.print("(" + node.key + " " + node.value + ") ");
+                }
+                System.out.println();
+            }
+        }
+        finally {
+            evictionLock.unlock();
+        }
+    }
+}
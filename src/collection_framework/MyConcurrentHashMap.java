@@ -1,22 +1,31 @@
 package collection_framework;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.util.*;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
-
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// one table of bins, an empty bin is filled with a CAS and only a non empty bin is locked (on its first node).
+// get takes no lock, node value and next are volatile and bins are read with volatile array reads.
+// a resize copies the table in strides of bins, every put while it runs copies one stride and every
+// copied bin holds a ForwardingNode pointing to the new table. it doubles the table, only putAll grows it
+// to the final size in one go.
+// a bin with TREEIFY_THRESHOLD keys becomes a TreeBin, whose tree is replaced as a whole on every change.
 public class MyConcurrentHashMap<K,V> implements Map<K,V> {
 
     private static class Node<K,V> implements Map.Entry<K,V> {
-        private K key;
-        private V value;
-        private Node<K,V> next;
-        private int hash;
+        private final int hash;
+        private final K key;
+        private volatile V value;
+        private volatile Node<K,V> next;
 
-        Node(K key, V value, Node<K,V> next) {
+        Node(int hash, K key, V value, Node<K,V> next) {
+            this.hash = hash;
             this.key = key;
             this.value = value;
             this.next = next;
-            this.hash = (key != null) ? Math.abs(key.hashCode()) : 0;
         }
 
         @Override
@@ -36,127 +45,110 @@ public class MyConcurrentHashMap<K,V> implements Map<K,V> {
             return oldValue;
         }
     }
-    private class Segment<K,V> {
-        volatile private int numberOfNodes;
-        volatile private int numberOfSlots;
-        volatile private Node<K,V> table[];
-        Segment() {
-            this.numberOfNodes = 0;
-            this.numberOfSlots = DEFAULT_NUMBER_OF_SLOTS_PER_SEGMENT;
-            table = new Node[numberOfSlots];
-        }
-        Segment(int numberOfNodes,int numberOfSlots,Node<K,V> table[]) {
-            this.numberOfNodes = numberOfNodes;
-            this.numberOfSlots = numberOfSlots;
-            this.table = table;
-        }
 
-        public Node<K,V> get(Object key,int hash) {
-            int slot = (hash / concurrencyLevel) % numberOfSlots;
-            Node<K,V> node = table[slot];
-            while (node != null) {
-                if (areEqual(key,node.key))
-                    return node;
-                node = node.next;
-            }
-            return null;
-        }
+    // left in a bin of the old table once it is copied to nextTable
+    private static class ForwardingNode<K,V> extends Node<K,V> {
+        private final Node<K,V>[] nextTable;
 
-        public Segment<K,V> put(K key,V value,int hash) {
-            int slot = (hash / concurrencyLevel) % numberOfSlots;
-            Node<K,V> newHeadNode = new Node<>(key,value,table[slot]);
-            table[slot] = newHeadNode;
-            numberOfNodes++;
-            if (numberOfNodes > (int)(loadFactor * numberOfSlots))
-                return rehash();
-            return null;
+        ForwardingNode(Node<K,V>[] nextTable) {
+            super(MOVED, null, null, null);
+            this.nextTable = nextTable;
         }
+    }
 
-        public V remove(Object key,int hash) {
-            int slot = (hash / concurrencyLevel) % numberOfSlots;
-            Node<K,V> prevNode = null;
-            Node<K,V> node = table[slot];
-            while (node != null) {
-                if (areEqual(node.key,key))
-                    break;
-                prevNode = node;
-                node = node.next;
-            }
-            if (node == null)
-                return null;
-
-            if (prevNode == null) {
-                table[slot] = node.next;
-            }
-            else {
-                prevNode.next = node.next;
-            }
-            numberOfNodes--;
-            return node.value;
-        }
-
-        private Segment<K,V> rehash() {
-            int newNumberOfSlots = numberOfSlots * 2;
-            Node<K, V>[] newTable = new Node[newNumberOfSlots];
-            Node<K, V>[] oldNodes = new Node[numberOfNodes];
-            int count = 0;
-            for(int i=0;i<table.length;i++) {
-                Node<K,V> node = table[i];
-                while (node != null) {
-                    oldNodes[count] = node;
-                    node = node.next;
-                    count++;
-                }
-            }
+    // first node of a bin holding a HashTree instead of a chain, locked by writers like any first node
+    private static class TreeBin<K,V> extends Node<K,V> {
+        private volatile HashTree.Node<K,V> root;
+        // only changed under the lock
+        private int count;
 
-            for (int i=0;i<oldNodes.length;i++) {
-                int slot = (oldNodes[i].hash / concurrencyLevel) % newNumberOfSlots;
-                oldNodes[i].next = newTable[slot];
-                newTable[slot] = oldNodes[i];
-            }
-            return new Segment<>(numberOfNodes,newNumberOfSlots,newTable);
+        TreeBin(HashTree.Node<K,V> root, int count) {
+            super(TREEBIN, null, null, null);
+            this.root = root;
+            this.count = count;
         }
+    }
 
-        public void display() {
-            for(int i=0;i<numberOfSlots;i++) {
-                Node<K,V> node = table[i];
-                System.out.print(i + " : ");
-                while (node != null) {
-                    System.out.print(" (" + node.key + " " + node.value + ") ");
-                    node = node.next;
-                }
-                System.out.println();
-            }
+    // a table growing in progress, any thread can claim the next stride of bins to copy, counting down from the top
+    private static class Resize<K,V> {
+        private final Node<K,V>[] table;
+        private final Node<K,V>[] nextTable;
+        private final ForwardingNode<K,V> forwardingNode;
+        private final int stride;
+        private final AtomicInteger transferIndex;
+        private final AtomicInteger copiedBins = new AtomicInteger(0);
+
+        // nextCapacity is a power of two above table.length
+        Resize(Node<K,V>[] table, int nextCapacity) {
+            this.table = table;
+            this.nextTable = new Node[nextCapacity];
+            this.forwardingNode = new ForwardingNode<>(nextTable);
+            this.stride = Math.max(table.length / (8 * NUMBER_OF_CPUS), MIN_TRANSFER_STRIDE);
+            this.transferIndex = new AtomicInteger(table.length);
         }
     }
 
-    private final static int DEFAULT_CONCURRENCY_LEVEL = 16;
+    private final static int DEFAULT_CAPACITY = 16;
+    private final static int MAXIMUM_CAPACITY = 1 << 30;
     private final static float DEFAULT_LOAD_FACTOR = 0.75f;
-    private final static int DEFAULT_NUMBER_OF_SLOTS_PER_SEGMENT = 16;
-
-    private volatile Segment<K,V> segments[];
+    // hash of ForwardingNode, hashes of keys are never negative
+    private final static int MOVED = -1;
+    // hash of TreeBin
+    private final static int TREEBIN = -2;
+    private final static int TREEIFY_THRESHOLD = 8;
+    private final static int UNTREEIFY_THRESHOLD = 6;
+    // smaller tables grow instead of building trees
+    private final static int MIN_TREEIFY_CAPACITY = 64;
+    private final static int MIN_TRANSFER_STRIDE = 16;
+    // an insert without a collision checks the resize threshold about once in this many
+    private final static int SIZE_SAMPLE_INTERVAL = 8;
+    // smaller tables are checked on every insert, the few inserts between samples would overfill them
+    private final static int MIN_SIZE_SAMPLE_CAPACITY = 256;
+    private final static int NUMBER_OF_CPUS = Runtime.getRuntime().availableProcessors();
+    private final static VarHandle TABLE_SLOT = MethodHandles.arrayElementVarHandle(Node[].class);
+
+    private volatile Node<K,V> table[];
     private volatile float loadFactor;
-    private volatile int concurrencyLevel;
-    private Lock locks[];
+    // resize once there are more nodes than this
+    private volatile int threshold;
+    // held from the start of a resize until its new table is published
+    private AtomicBoolean resizing = new AtomicBoolean(false);
+    private volatile Resize<K,V> resize;
+    private StripedCounter numberOfNodes = new StripedCounter();
 
     MyConcurrentHashMap() {
-        loadFactor = DEFAULT_LOAD_FACTOR;
-        concurrencyLevel = DEFAULT_CONCURRENCY_LEVEL;
-        segments = new Segment[concurrencyLevel];
-        locks = new Lock[concurrencyLevel];
-        for (int i = 0; i< segments.length; i++) {
-            segments[i] = new Segment<K,V>();
-            locks[i] = new ReentrantLock();
-        }
+        this(0, DEFAULT_LOAD_FACTOR, 1);
+    }
+
+    // sized so expectedSize mappings fit without a resize
+    MyConcurrentHashMap(int expectedSize) {
+        this(expectedSize, DEFAULT_LOAD_FACTOR, 1);
+    }
+
+    MyConcurrentHashMap(int expectedSize, float loadFactor) {
+        this(expectedSize, loadFactor, 1);
+    }
+
+    // concurrencyLevel is the expected number of updating threads, the table gets at least as many bins
+    MyConcurrentHashMap(int expectedSize, float loadFactor, int concurrencyLevel) {
+        if (expectedSize < 0 || !(loadFactor > 0) || concurrencyLevel <= 0)
+            throw new IllegalArgumentException();
+        this.loadFactor = loadFactor;
+        int capacity = capacityFor(Math.max(expectedSize, concurrencyLevel), loadFactor);
+        table = new Node[capacity];
+        threshold = (int) (loadFactor * capacity);
     }
 
+    // exact whenever no update is in flight, a sum over at most one counter cell per cpu
     @Override
     public int size() {
-        int sum = 0;
-        for (int i=0;i<segments.length;i++) {
-            sum += segments[i].numberOfNodes;
-        }
-        return sum;
+        long count = sumCount();
+        return (count > Integer.MAX_VALUE) ? Integer.MAX_VALUE : (int) count;
+    }
+
+    // number of mappings as a long, for maps that may outgrow an int. same sum as size()
+    public long mappingCount() {
+        return sumCount();
     }
 
     @Override
@@ -166,7 +158,7 @@ public class MyConcurrentHashMap<K,V> implements Map<K,V> {
 
     @Override
     public boolean containsKey(Object key) {
-        return get(key) != null;
+        return findNode(key) != null;
     }
 
     @Override
@@ -181,177 +173,434 @@ public class MyConcurrentHashMap<K,V> implements Map<K,V> {
         return false;
     }
 
+    // mixes the bits of hashCode, the table index only uses the low bits
     private int hashCodeFromObject(Object o) {
-        return (o != null) ? Math.abs(o.hashCode()) : 0;
+        if (o == null)
+            return 0;
+        int h = o.hashCode() * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & 0x7fffffff;
+    }
+
+    // only reads the counter cells, a removal counted before its insert can make the sum briefly negative
+    private long sumCount() {
+        return Math.max(numberOfNodes.sum(), 0);
+    }
+
+    private static boolean isSampled() {
+        return ThreadLocalRandom.current().nextInt(SIZE_SAMPLE_INTERVAL) == 0;
+    }
+
+    // smallest power of two table holding expectedSize nodes below the load factor
+    private static int capacityFor(long expectedSize, float loadFactor) {
+        int capacity = DEFAULT_CAPACITY;
+        while (capacity < MAXIMUM_CAPACITY && (int) (loadFactor * capacity) < expectedSize)
+            capacity *= 2;
+        return capacity;
+    }
+
+    // a chain, or a TreeBin once there are more than UNTREEIFY_THRESHOLD entries
+    private Node<K,V> binOf(List<? extends Map.Entry<K,V>> entries) {
+        if (entries.size() > UNTREEIFY_THRESHOLD) {
+            HashTree.Node<K,V> root = null;
+            for (Map.Entry<K,V> entry : entries) {
+                root = HashTree.insert(root, hashCodeFromObject(entry.getKey()), entry.getKey(), entry.getValue());
+            }
+            return new TreeBin<>(root, entries.size());
+        }
+        Node<K,V> headNode = null;
+        for (int i = entries.size() - 1; i >= 0; i--) {
+            Map.Entry<K,V> entry = entries.get(i);
+            headNode = new Node<>(hashCodeFromObject(entry.getKey()), entry.getKey(), entry.getValue(), headNode);
+        }
+        return headNode;
+    }
+
+    private static <K,V> List<Map.Entry<K,V>> entriesOf(Node<K,V> headNode) {
+        List<Map.Entry<K,V>> entries = new ArrayList<>();
+        if (headNode != null && headNode.hash == TREEBIN) {
+            HashTree.collect(((TreeBin<K,V>) headNode).root, entries);
+            return entries;
+        }
+        for (Node<K,V> node = headNode; node != null; node = node.next)
+            entries.add(node);
+        return entries;
+    }
+
+    private static <K,V> Node<K,V> tabAt(Node<K,V>[] tab, int index) {
+        return (Node<K,V>) TABLE_SLOT.getVolatile(tab, index);
+    }
+
+    private static <K,V> boolean casTabAt(Node<K,V>[] tab, int index, Node<K,V> expected, Node<K,V> node) {
+        return TABLE_SLOT.compareAndSet(tab, index, expected, node);
+    }
+
+    private static <K,V> void setTabAt(Node<K,V>[] tab, int index, Node<K,V> node) {
+        TABLE_SLOT.setVolatile(tab, index, node);
     }
     /*-------------------------------------------------------------------------------*/
 
+    private Map.Entry<K,V> findNode(Object key) {
+        int hash = hashCodeFromObject(key);
+        Node<K,V>[] tab = table;
+        while (true) {
+            Node<K,V> node = tabAt(tab, hash & (tab.length - 1));
+            if (node != null && node.hash == MOVED) {
+                tab = ((ForwardingNode<K,V>) node).nextTable;
+                continue;
+            }
+            if (node != null && node.hash == TREEBIN)
+                return HashTree.find(((TreeBin<K,V>) node).root, hash, key);
+            while (node != null) {
+                if (node.hash == hash && areEqual(key, node.key))
+                    return node;
+                node = node.next;
+            }
+            return null;
+        }
+    }
 
     @Override
     public V get(Object key) {
-        int hash = hashCodeFromObject(key);
-        int segmentId = hash % concurrencyLevel;
-        // reference to avoid conflict from rehash()
-        Segment<K,V> segment = segments[segmentId];
-        Node<K,V> node = segment.get(key,hash);
+        Map.Entry<K,V> node = findNode(key);
         if (node == null)
             return null;
-        return node.value;
+        return node.getValue();
     }
 
     @Override
     public V put(K key, V value) {
+        return putVal(key, value, true);
+    }
+
+    // without checkSize the caller sized the table for the insert, the counter is not summed
+    private V putVal(K key, V value, boolean checkSize) {
         int hash = hashCodeFromObject(key);
-        int segmentId = hash % concurrencyLevel;
+        boolean collided = false;
+        Node<K,V>[] tab = table;
+        while (true) {
+            int slot = hash & (tab.length - 1);
+            Node<K,V> headNode = tabAt(tab, slot);
+            if (headNode == null) {
+                if (casTabAt(tab, slot, null, new Node<>(hash, key, value, null)))
+                    break;
+            }
+            else if (headNode.hash == MOVED) {
+                // the bin is already copied, the new table is live for it
+                tab = ((ForwardingNode<K,V>) headNode).nextTable;
+            }
+            else {
+                synchronized (headNode) {
+                    // removed or migrated while we waited for the lock
+                    if (tabAt(tab, slot) != headNode)
+                        continue;
+                    if (headNode.hash == TREEBIN) {
+                        TreeBin<K,V> treeBin = (TreeBin<K,V>) headNode;
+                        HashTree.Node<K,V> treeNode = HashTree.find(treeBin.root, hash, key);
+                        if (treeNode != null)
+                            return treeNode.setValue(value);
+                        treeBin.root = HashTree.insert(treeBin.root, hash, key, value);
+                        treeBin.count++;
+                    }
+                    else {
+                        int binCount = 1;
+                        Node<K,V> node = headNode;
+                        while (true) {
+                            if (node.hash == hash && areEqual(key, node.key))
+                                return node.setValue(value);
+                            if (node.next == null)
+                                break;
+                            node = node.next;
+                            binCount++;
+                        }
+                        node.next = new Node<>(hash, key, value, null);
+                        if (binCount + 1 >= TREEIFY_THRESHOLD && tab.length >= MIN_TREEIFY_CAPACITY)
+                            setTabAt(tab, slot, binOf(entriesOf(headNode)));
+                    }
+                }
+                collided = true;
+                break;
+            }
+        }
 
-        locks[segmentId].lock();
-        try {
+        numberOfNodes.add(1);
+        // a collision shows the bins filling up, inserts into empty bins are checked on a sample so they
+        // carry the load only a few inserts past the threshold
+        if (checkSize && (collided || tab.length < MIN_SIZE_SAMPLE_CAPACITY || isSampled()) && sumCount() > threshold)
+            startResize();
+        helpResize(1);
+        return null;
+    }
 
-            Node<K,V> node = segments[segmentId].get(key, hash);
-            if (node == null) {
-                // if rehash() happens newSegment will have non null value
-                Segment<K,V> newSegment = segments[segmentId].put(key,value,hash);
-                if (newSegment != null)
-                    segments[segmentId] = newSegment;
+    @Override
+    public V remove(Object key) {
+        Map.Entry<K,V> node = removeNode(key, null, false);
+        return (node == null) ? null : node.getValue();
+    }
 
+    // removes key only while it is mapped to value, checked under the bin lock
+    @Override
+    public boolean remove(Object key, Object value) {
+        return removeNode(key, value, true) != null;
+    }
+
+    private Map.Entry<K,V> removeNode(Object key, Object value, boolean matchValue) {
+        int hash = hashCodeFromObject(key);
+        Node<K,V>[] tab = table;
+        while (true) {
+            int slot = hash & (tab.length - 1);
+            Node<K,V> headNode = tabAt(tab, slot);
+            if (headNode == null)
                 return null;
+            if (headNode.hash == MOVED) {
+                tab = ((ForwardingNode<K,V>) headNode).nextTable;
+                continue;
+            }
+            synchronized (headNode) {
+                if (tabAt(tab, slot) != headNode)
+                    continue;
+                if (headNode.hash == TREEBIN) {
+                    TreeBin<K,V> treeBin = (TreeBin<K,V>) headNode;
+                    HashTree.Node<K,V> treeNode = HashTree.find(treeBin.root, hash, key);
+                    if (treeNode == null || (matchValue && !areEqual(value, treeNode.getValue())))
+                        return null;
+                    treeBin.root = HashTree.remove(treeBin.root, hash, key);
+                    if (--treeBin.count <= UNTREEIFY_THRESHOLD)
+                        setTabAt(tab, slot, binOf(entriesOf(treeBin)));
+                    numberOfNodes.add(-1);
+                    return treeNode;
+                }
+                Node<K,V> prevNode = null;
+                Node<K,V> node = headNode;
+                while (node != null && !(node.hash == hash && areEqual(key, node.key))) {
+                    prevNode = node;
+                    node = node.next;
+                }
+                if (node == null || (matchValue && !areEqual(value, node.value)))
+                    return null;
+
+                // readers already on the removed node still see the rest of the chain
+                if (prevNode == null)
+                    setTabAt(tab, slot, node.next);
+                else
+                    prevNode.next = node.next;
+                numberOfNodes.add(-1);
+                return node;
             }
-
-            return node.setValue(value);
-        }
-        finally {
-            locks[segmentId].unlock();
         }
     }
 
-    @Override
-    public V remove(Object key) {
-        int hash = hashCodeFromObject(key);
-        int segmentId = hash % concurrencyLevel;
+    private void startResize() {
+        if (!resizing.compareAndSet(false, true))
+            return;
+        Node<K,V>[] tab = table;
+        if (sumCount() <= threshold || tab.length >= MAXIMUM_CAPACITY) {
+            resizing.set(false);
+            return;
+        }
+        resize = new Resize<>(tab, tab.length << 1);
+    }
 
-        locks[segmentId].lock();
-        try {
-            return segments[segmentId].remove(key,hash);
+    // copies up to maxStrides strides of the running resize, if any. writers keep going meanwhile:
+    // bins not yet copied are updated in the old table, copied bins in the new one
+    private void helpResize(int maxStrides) {
+        Resize<K,V> currentResize = resize;
+        if (currentResize == null)
+            return;
+
+        for (int strides = 0; strides < maxStrides; strides++) {
+            int end;
+            int start;
+            do {
+                end = currentResize.transferIndex.get();
+                if (end <= 0)
+                    return;
+                start = Math.max(end - currentResize.stride, 0);
+            } while (!currentResize.transferIndex.compareAndSet(end, start));
+
+            for (int i = start; i < end; i++) {
+                copyBin(currentResize, i);
+            }
+            // whoever copies the last bin publishes the new table
+            if (currentResize.copiedBins.addAndGet(end - start) == currentResize.table.length) {
+                table = currentResize.nextTable;
+                threshold = (int) (loadFactor * currentResize.nextTable.length);
+                resize = null;
+                resizing.set(false);
+                // puts during the copy may already need the next resize
+                if (sumCount() > threshold)
+                    startResize();
+                return;
+            }
         }
-        finally {
-            locks[segmentId].unlock();
+    }
+
+    private void copyBin(Resize<K,V> currentResize, int i) {
+        Node<K,V>[] tab = currentResize.table;
+        Node<K,V>[] nextTab = currentResize.nextTable;
+        while (true) {
+            Node<K,V> headNode = tabAt(tab, i);
+            if (headNode == null) {
+                if (casTabAt(tab, i, null, currentResize.forwardingNode))
+                    return;
+                continue;
+            }
+            synchronized (headNode) {
+                if (tabAt(tab, i) != headNode)
+                    continue;
+                // nodes are copied, readers may still walk the old chain. bin i spreads over the bins
+                // i + k * tab.length of the new table, a stable sort groups the entries by new bin in their old order
+                int nextMask = nextTab.length - 1;
+                List<Map.Entry<K,V>> entries = entriesOf(headNode);
+                entries.sort(Comparator.comparingInt(entry -> hashCodeFromObject(entry.getKey()) & nextMask));
+                int from = 0;
+                while (from < entries.size()) {
+                    int bin = hashCodeFromObject(entries.get(from).getKey()) & nextMask;
+                    int to = from + 1;
+                    while (to < entries.size() && (hashCodeFromObject(entries.get(to).getKey()) & nextMask) == bin)
+                        to++;
+                    setTabAt(nextTab, bin, binOf(entries.subList(from, to)));
+                    from = to;
+                }
+                setTabAt(tab, i, currentResize.forwardingNode);
+            }
+            return;
         }
     }
 
+    // grows the table for all of m in one copy first, then inserts without testing the threshold per entry
     @Override
     public void putAll(Map<? extends K, ? extends V> m) {
+        presize(sumCount() + m.size());
         for(Map.Entry<? extends K, ? extends V> entry: m.entrySet()) {
-            put(entry.getKey(),entry.getValue());
+            putVal(entry.getKey(), entry.getValue(), false);
+        }
+        // puts of other threads meanwhile were counted but may not have started the resize
+        if (sumCount() > threshold)
+            startResize();
+    }
+
+    // grows the table straight to the capacity for expectedSize nodes, a resize already running is finished first
+    private void presize(long expectedSize) {
+        Node<K,V>[] tab;
+        while ((tab = table).length < MAXIMUM_CAPACITY && (int) (loadFactor * tab.length) < expectedSize) {
+            if (resizing.compareAndSet(false, true)) {
+                if (table != tab) {
+                    resizing.set(false);
+                    continue;
+                }
+                resize = new Resize<>(tab, capacityFor(expectedSize, loadFactor));
+            }
+            // ours or one already running, copy until its new table is published
+            while (table == tab) {
+                helpResize(Integer.MAX_VALUE);
+                Thread.yield();
+            }
         }
     }
 
     @Override
     public void clear() {
-        for(int i=0;i<segments.length;i++) {
-            locks[i].lock();
-            try {
-                Arrays.fill(segments[i].table, null);
+        Node<K,V>[] tab = table;
+        int i = 0;
+        while (i < tab.length) {
+            Node<K,V> headNode = tabAt(tab, i);
+            if (headNode == null) {
+                i++;
             }
-            finally {
-                locks[i].unlock();
+            else if (headNode.hash == MOVED) {
+                // bins after i may not be copied yet, finish the resize and start over on the new table
+                helpResize(Integer.MAX_VALUE);
+                while (table == tab)
+                    Thread.yield();
+                tab = table;
+                i = 0;
+            }
+            else {
+                synchronized (headNode) {
+                    if (tabAt(tab, i) != headNode)
+                        continue;
+                    int removed = entriesOf(headNode).size();
+                    setTabAt(tab, i, null);
+                    numberOfNodes.add(-removed);
+                    i++;
+                }
             }
         }
     }
 
+    /*---------------- classes for iterator ---------------*/
 
+    // walks the table as it was when created, bins moved by a resize are read from the new table
+    private abstract class TableIterator<T> implements Iterator<T> {
 
+        private Node<K,V>[] table;
+        private int slotIndex;
+        private List<Map.Entry<K,V>> binNodes = new ArrayList<>();
+        private int binNodeIndex;
+        private Map.Entry<K,V> node;
 
+        TableIterator() {
+            this.table = MyConcurrentHashMap.this.table;
+            this.slotIndex = 0;
+            advance();
+        }
 
+        abstract T valueOf(Map.Entry<K,V> node);
 
-    /*---------------- classes for iterator ---------------*/
-    private class EntrySet implements Set<Map.Entry<K,V>> {
-
-        private class EntrySetIterator implements Iterator<Map.Entry<K,V> > {
-
-            int segmentIndex;
-            int slotIndex;
-            Node<K,V> node;
-            Node<K,V> nextNode;
-
-            EntrySetIterator() {
-                this.segmentIndex = 0;
-                this.slotIndex = 0;
-                this.node = null;
-                this.nextNode = null;
-                while (segmentIndex < segments.length) {
-                    while (slotIndex < segments[segmentIndex].table.length && segments[segmentIndex].table[slotIndex] == null) {
-                        slotIndex++;
-                    }
-                    if (slotIndex == segments[segmentIndex].table.length) {
-                        segmentIndex++;
-                        slotIndex = 0;
-                    }
-                    else {
-                        nextNode = segments[segmentIndex].table[slotIndex];
-                        break;
-                    }
-                }
+        private void advance() {
+            while (binNodeIndex == binNodes.size() && slotIndex < table.length) {
+                binNodes.clear();
+                binNodeIndex = 0;
+                collectBin(table, slotIndex++, binNodes);
             }
+        }
 
-            @Override
-            public boolean hasNext() {
-                return (nextNode != null);
+        private void collectBin(Node<K,V>[] tab, int index, List<Map.Entry<K,V>> nodes) {
+            Node<K,V> node = tabAt(tab, index);
+            if (node != null && node.hash == MOVED) {
+                Node<K,V>[] nextTab = ((ForwardingNode<K,V>) node).nextTable;
+                collectBin(nextTab, index, nodes);
+                collectBin(nextTab, index + tab.length, nodes);
+                return;
             }
+            nodes.addAll(entriesOf(node));
+        }
 
-            @Override
-            public Entry<K, V> next() {
-                if (nextNode == null)
-                    throw new NoSuchElementException();
-                node = nextNode;
-                if(nextNode.next == null) {
-                    slotIndex++;
-                    while (segmentIndex < segments.length) {
-                        while (slotIndex < segments[segmentIndex].table.length && segments[segmentIndex].table[slotIndex] == null) {
-                            slotIndex++;
-                        }
-                        if (slotIndex == segments[segmentIndex].table.length) {
-                            segmentIndex++;
-                            slotIndex = 0;
-                        }
-                        else {
-                            nextNode = segments[segmentIndex].table[slotIndex];
-                            break;
-                        }
-                    }
-                    if (segmentIndex == segments.length)
-                        nextNode = null;
-                }
-                else {
-                    nextNode = nextNode.next;
-                }
-                return node;
-            }
+        @Override
+        public boolean hasNext() {
+            return binNodeIndex < binNodes.size();
+        }
 
-            @Override
-            public void remove() {
-                if (node == null)
-                    throw new IllegalStateException();
-                MyConcurrentHashMap.this.remove(node.getKey());
-                node = null;
-            }
+        @Override
+        public T next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            node = binNodes.get(binNodeIndex++);
+            advance();
+            return valueOf(node);
         }
 
-        // copy of segments
-        Segment<K,V>[] segments;
-        EntrySet() {
-            segments = new Segment[concurrencyLevel];
-            for(int i=0;i<MyConcurrentHashMap.this.segments.length;i++) {
-                segments[i] = MyConcurrentHashMap.this.segments[i];
+        @Override
+        public void remove() {
+            if (node == null)
+                throw new IllegalStateException();
+            MyConcurrentHashMap.this.remove(node.getKey());
+            node = null;
+        }
+    }
+
+    private class EntrySet implements Set<Map.Entry<K,V>> {
+
+        private class EntrySetIterator extends TableIterator<Map.Entry<K,V>> {
+            @Override
+            Entry<K, V> valueOf(Map.Entry<K, V> node) {
+                return node;
             }
         }
 
         @Override
         public int size() {
-            int sum = 0;
-            for (int i=0;i<segments.length;i++) {
-                sum += segments[i].numberOfNodes;
-            }
-            return sum;
+            return MyConcurrentHashMap.this.size();
         }
 
         @Override
@@ -417,92 +666,16 @@ public class MyConcurrentHashMap<K,V> implements Map<K,V> {
 
     private class KeySet implements Set<K> {
 
-        private class KeySetIterator implements Iterator<K> {
-
-            int segmentIndex;
-            int slotIndex;
-            Node<K,V> node;
-            Node<K,V> nextNode;
-
-            KeySetIterator() {
-                this.segmentIndex = 0;
-                this.slotIndex = 0;
-                this.node = null;
-                this.nextNode = null;
-                while (segmentIndex < segments.length) {
-                    while (slotIndex < segments[segmentIndex].table.length && segments[segmentIndex].table[slotIndex] == null) {
-                        slotIndex++;
-                    }
-                    if (slotIndex == segments[segmentIndex].table.length) {
-                        segmentIndex++;
-                        slotIndex = 0;
-                    }
-                    else {
-                        nextNode = segments[segmentIndex].table[slotIndex];
-                        break;
-                    }
-                }
-            }
-
-            @Override
-            public boolean hasNext() {
-                return (nextNode != null);
-            }
-
+        private class KeySetIterator extends TableIterator<K> {
             @Override
-            public K next() {
-                if (nextNode == null)
-                    throw new NoSuchElementException();
-                node = nextNode;
-                if(nextNode.next == null) {
-                    slotIndex++;
-                    while (segmentIndex < segments.length) {
-                        while (slotIndex < segments[segmentIndex].table.length && segments[segmentIndex].table[slotIndex] == null) {
-                            slotIndex++;
-                        }
-                        if (slotIndex == segments[segmentIndex].table.length) {
-                            segmentIndex++;
-                            slotIndex = 0;
-                        }
-                        else {
-                            nextNode = segments[segmentIndex].table[slotIndex];
-                            break;
-                        }
-                    }
-                    if (segmentIndex == segments.length)
-                        nextNode = null;
-                }
-                else {
-                    nextNode = nextNode.next;
-                }
+            K valueOf(Map.Entry<K, V> node) {
                 return node.getKey();
             }
-
-            @Override
-            public void remove() {
-                if (node == null)
-                    throw new IllegalStateException();
-                MyConcurrentHashMap.this.remove(node.getKey());
-                node = null;
-            }
-        }
-
-        // copy of segments
-        Segment<K,V>[] segments;
-        KeySet() {
-            segments = new Segment[concurrencyLevel];
-            for(int i=0;i<MyConcurrentHashMap.this.segments.length;i++) {
-                segments[i] = MyConcurrentHashMap.this.segments[i];
-            }
         }
 
         @Override
         public int size() {
-            int sum = 0;
-            for (int i=0;i<segments.length;i++) {
-                sum += segments[i].numberOfNodes;
-            }
-            return sum;
+            return MyConcurrentHashMap.this.size();
         }
 
         @Override
@@ -568,92 +741,16 @@ public class MyConcurrentHashMap<K,V> implements Map<K,V> {
 
     private class ValueCollection implements Collection<V> {
 
-        private class ValueCollectionIterator implements Iterator<V> {
-
-            int segmentIndex;
-            int slotIndex;
-            Node<K,V> node;
-            Node<K,V> nextNode;
-
-            ValueCollectionIterator() {
-                this.segmentIndex = 0;
-                this.slotIndex = 0;
-                this.node = null;
-                this.nextNode = null;
-                while (segmentIndex < segments.length) {
-                    while (slotIndex < segments[segmentIndex].table.length && segments[segmentIndex].table[slotIndex] == null) {
-                        slotIndex++;
-                    }
-                    if (slotIndex == segments[segmentIndex].table.length) {
-                        segmentIndex++;
-                        slotIndex = 0;
-                    }
-                    else {
-                        nextNode = segments[segmentIndex].table[slotIndex];
-                        break;
-                    }
-                }
-            }
-
+        private class ValueCollectionIterator extends TableIterator<V> {
             @Override
-            public boolean hasNext() {
-                return nextNode != null;
-            }
-
-            @Override
-            public V next() {
-                if (nextNode == null)
-                    throw new NoSuchElementException();
-                node = nextNode;
-                if(nextNode.next == null) {
-                    slotIndex++;
-                    while (segmentIndex < segments.length) {
-                        while (slotIndex < segments[segmentIndex].table.length && segments[segmentIndex].table[slotIndex] == null) {
-                            slotIndex++;
-                        }
-                        if (slotIndex == segments[segmentIndex].table.length) {
-                            segmentIndex++;
-                            slotIndex = 0;
-                        }
-                        else {
-                            nextNode = segments[segmentIndex].table[slotIndex];
-                            break;
-                        }
-                    }
-                    if (segmentIndex == segments.length)
-                        nextNode = null;
-                }
-                else {
-                    nextNode = nextNode.next;
-                }
+            V valueOf(Map.Entry<K, V> node) {
                 return node.getValue();
             }
-
-            @Override
-            public void remove() {
-                if (node == null)
-                    throw new IllegalStateException();
-                MyConcurrentHashMap.this.remove(node.getKey());
-                node = null;
-            }
-        }
-
-        // copy of segments
-        Segment<K,V>[] segments;
-        ValueCollection() {
-            segments = new Segment[concurrencyLevel];
-            for(int i=0;i<MyConcurrentHashMap.this.segments.length;i++) {
-                segments[i] = MyConcurrentHashMap.this.segments[i];
-            }
         }
 
         @Override
         public int size() {
-            int sum = 0;
-            for (int i=0;i<segments.length;i++) {
-                sum += segments[i].numberOfNodes;
-            }
-            return sum;
+            return MyConcurrentHashMap.this.size();
         }
 
         @Override
@@ -737,9 +834,18 @@ public class MyConcurrentHashMap<K,V> implements Map<K,V> {
     }
 
     public void display() {
-        for(int i=0;i<segments.length;i++) {
-            System.out.println("segemnt number : " + i);
-            segments[i].display();
+        Node<K,V>[] tab = table;
+        for(int i=0;i<tab.length;i++) {
+            Node<K,V> node = tabAt(tab, i);
+            System.out.print(i + " : ");
+            if (node != null && node.hash == MOVED) {
+                System.out.println(" (moved) ");
+                continue;
+            }
+            for (Map.Entry<K,V> entry : entriesOf(node)) {
+                System.out.print(" (" + entry.getKey() + " " + entry.getValue() + ") ");
+            }
+            System.out.println();
         }
     }
 }
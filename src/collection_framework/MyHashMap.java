@@ -5,12 +5,14 @@ import java.util.*;
 public class MyHashMap<K,V> implements Map<K,V> {
 
     private static class Node<K,V> implements Map.Entry<K,V> {
+        private final int hash;
         private K key;
         private V value;
         private Node<K,V> next;
 
-        Node(K key,V value,Node<K,V> next)
+        Node(int hash,K key,V value,Node<K,V> next)
         {
+            this.hash = hash;
             this.key = key;
             this.value = value;
             this.next = next;
@@ -35,59 +37,77 @@ public class MyHashMap<K,V> implements Map<K,V> {
 
     }
 
-    private class EntrySet implements Set<Entry<K,V> > {
+    // first node of a bin holding a HashTree instead of a chain
+    private static class TreeBin<K,V> extends Node<K,V> {
+        private HashTree.Node<K,V> root;
+        private int count;
 
-        private class EntrySetIterator implements Iterator<Entry<K,V> > {
+        TreeBin(HashTree.Node<K,V> root, int count) {
+            super(0, null, null, null);
+            this.root = root;
+            this.count = count;
+        }
+    }
 
-            private int slotIndex;
-            private Node<K,V> slotNode;
-            private Node<K,V> slotNextNode;
+    // walks the bins in table order, then the bins not moved yet of a rehash, a tree bin in key order.
+    // only remove of the iterator itself may change the map meanwhile, it does not move bins
+    private abstract class TableIterator<T> implements Iterator<T> {
 
-            EntrySetIterator() {
-                slotIndex = 0;
-                slotNode = null;
-                slotNextNode = null;
-                while(slotIndex < MyHashMap.this.table.length && MyHashMap.this.table[slotIndex] == null)
-                    slotIndex++;
-                if (slotIndex == MyHashMap.this.table.length)
-                    slotNextNode = null;
-                else
-                    slotNextNode = MyHashMap.this.table[slotIndex];
-            }
+        private int slotIndex;
+        private List<Entry<K,V>> binNodes = new ArrayList<>();
+        private int binNodeIndex;
+        private Entry<K,V> slotNode;
 
-            @Override
-            public boolean hasNext() {
-                return (slotNextNode != null);
+        TableIterator() {
+            slotIndex = 0;
+            advance();
+        }
+
+        abstract T valueOf(Entry<K,V> node);
+
+        private void advance() {
+            Node<K,V>[] table = MyHashMap.this.table;
+            Node<K,V>[] oldTable = MyHashMap.this.oldTable;
+            int numberOfBins = table.length + ((oldTable == null) ? 0 : oldTable.length);
+            while (binNodeIndex == binNodes.size() && slotIndex < numberOfBins) {
+                binNodes.clear();
+                binNodeIndex = 0;
+                binNodes.addAll(entriesOf((slotIndex < table.length) ? table[slotIndex] : oldTable[slotIndex - table.length]));
+                slotIndex++;
             }
+        }
 
-            @Override
-            public Entry<K, V> next() {
-                if (slotNextNode == null)
-                    throw new NoSuchElementException();
-
-                slotNode = slotNextNode;
-                if (slotNextNode.next == null) {
-                    slotIndex++;
-                    while(slotIndex < MyHashMap.this.table.length && MyHashMap.this.table[slotIndex] == null)
-                        slotIndex++;
-                    if (slotIndex == MyHashMap.this.table.length)
-                        slotNextNode = null;
-                    else
-                        slotNextNode = MyHashMap.this.table[slotIndex];
-                }
-                else
-                    slotNextNode = slotNextNode.next;
-                return slotNode;
+        @Override
+        public boolean hasNext() {
+            return binNodeIndex < binNodes.size();
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            slotNode = binNodes.get(binNodeIndex++);
+            advance();
+            return valueOf(slotNode);
+        }
+
+        @Override
+        public void remove() {
+            if (slotNode == null) {
+                throw new IllegalStateException();
             }
+            K keyRef = slotNode.getKey();
+            removeNode(keyRef);
+            slotNode = null;
+        }
+    }
 
+    private class EntrySet implements Set<Entry<K,V> > {
+
+        private class EntrySetIterator extends TableIterator<Entry<K,V>> {
             @Override
-            public void remove() {
-                if (slotNode == null) {
-                    throw new IllegalStateException();
-                }
-                K keyRef = slotNode.getKey();
-                MyHashMap.this.remove(keyRef);
-                slotNode = null;
+            Entry<K, V> valueOf(Entry<K, V> node) {
+                return node;
             }
         }
 
@@ -165,59 +185,14 @@ public class MyHashMap<K,V> implements Map<K,V> {
 
     private class KeySet implements Set<K> {
 
-        private class KeySetIterator implements Iterator<K> {
-
-            private int slotIndex;
-            private Node<K,V> slotNode;
-            private Node<K,V> slotNextNode;
-            KeySetIterator() {
-                slotIndex = 0;
-                slotNode = null;
-                slotNextNode = null;
-                while(slotIndex < MyHashMap.this.table.length && MyHashMap.this.table[slotIndex] == null)
-                    slotIndex++;
-                if (slotIndex == MyHashMap.this.table.length)
-                    slotNextNode = null;
-                else
-                    slotNextNode = MyHashMap.this.table[slotIndex];
-            }
-
+        private class KeySetIterator extends TableIterator<K> {
             @Override
-            public boolean hasNext() {
-                return (slotNextNode != null);
-            }
-
-            @Override
-            public K next() {
-                if (slotNextNode == null)
-                    throw new NoSuchElementException();
-
-                slotNode = slotNextNode;
-                if (slotNextNode.next == null) {
-                    slotIndex++;
-                    while(slotIndex < MyHashMap.this.table.length && MyHashMap.this.table[slotIndex] == null)
-                        slotIndex++;
-                    if (slotIndex == MyHashMap.this.table.length)
-                        slotNextNode = null;
-                    else
-                        slotNextNode = MyHashMap.this.table[slotIndex];
-                }
-                else
-                    slotNextNode = slotNextNode.next;
-                return slotNode.getKey();
-            }
-
-            @Override
-            public void remove() {
-                if (slotNode == null) {
-                    throw new IllegalStateException();
-                }
-                K keyRef = slotNode.getKey();
-                MyHashMap.this.remove(keyRef);
-                slotNode = null;
+            K valueOf(Entry<K, V> node) {
+                return node.getKey();
             }
         }
 
+
         private MyHashMap<K,V> myHashMap;
         KeySet() {
             this.myHashMap = MyHashMap.this;
@@ -290,60 +265,14 @@ public class MyHashMap<K,V> implements Map<K,V> {
 
     private class ValueCollection implements Collection<V> {
 
-        private class ValueCollectionIterator implements Iterator<V> {
-
-            private int slotIndex;
-            private Node<K,V> slotNode;
-            private Node<K,V> slotNextNode;
-            ValueCollectionIterator() {
-                slotIndex = 0;
-                slotNode = null;
-                slotNextNode = null;
-                while(slotIndex < MyHashMap.this.table.length && MyHashMap.this.table[slotIndex] == null)
-                    slotIndex++;
-                if (slotIndex == MyHashMap.this.table.length)
-                    slotNextNode = null;
-                else
-                    slotNextNode = MyHashMap.this.table[slotIndex];
-            }
-
+        private class ValueCollectionIterator extends TableIterator<V> {
             @Override
-            public boolean hasNext() {
-                return (slotNextNode != null);
-            }
-
-            @Override
-            public V next() {
-
-                if (slotNextNode == null)
-                    throw new NoSuchElementException();
-
-                slotNode = slotNextNode;
-                if (slotNextNode.next == null) {
-                    slotIndex++;
-                    while(slotIndex < MyHashMap.this.table.length && MyHashMap.this.table[slotIndex] == null)
-                        slotIndex++;
-                    if (slotIndex == MyHashMap.this.table.length)
-                        slotNextNode = null;
-                    else
-                        slotNextNode = MyHashMap.this.table[slotIndex];
-                }
-                else
-                    slotNextNode = slotNextNode.next;
-                return slotNode.getValue();
-            }
-
-            @Override
-            public void remove() {
-                if (slotNode == null) {
-                    throw new IllegalStateException();
-                }
-                K keyRef = slotNode.getKey();
-                MyHashMap.this.remove(keyRef);
-                slotNode = null;
+            V valueOf(Entry<K, V> node) {
+                return node.getValue();
             }
         }
 
+
         private MyHashMap<K,V> myHashMap;
         ValueCollection() {
             this.myHashMap = MyHashMap.this;
@@ -416,13 +345,25 @@ public class MyHashMap<K,V> implements Map<K,V> {
     }
 
     static private final int DEFAULT_CAPACITY = 16;
+    static private final int MAXIMUM_CAPACITY = 1 << 30;
     static private final float DEFAULT_LOADFACTOR = 0.75f;
-
-    private int numberOfSlots;        // table size
+    // a chain this long becomes a tree, a tree this small becomes a chain again
+    static private final int TREEIFY_THRESHOLD = 8;
+    static private final int UNTREEIFY_THRESHOLD = 6;
+    // smaller tables grow instead of building trees
+    static private final int MIN_TREEIFY_CAPACITY = 64;
+    // non empty bins moved to the new table by every put and remove during a rehash
+    static private final int REHASH_STEP = 2;
+
+    private int numberOfSlots;        // table size, a power of two
     private float loadFactor;
     private int numberOfNodes;
     private Node<K,V> table[];
 
+    // during a rehash the table being emptied into table, bins below rehashIndex are moved already
+    private Node<K,V> oldTable[];
+    private int rehashIndex;
+
     private EntrySet entrySet = new EntrySet();
     private KeySet keySet = new KeySet();
     private ValueCollection valueCollection = new ValueCollection();
@@ -430,8 +371,19 @@ public class MyHashMap<K,V> implements Map<K,V> {
     /* constructors */
 
     public MyHashMap() {
-        this.numberOfSlots = DEFAULT_CAPACITY;
-        this.loadFactor = DEFAULT_LOADFACTOR;
+        this(0, DEFAULT_LOADFACTOR);
+    }
+
+    // sized so expectedSize entries fit without a rehash
+    public MyHashMap(int expectedSize) {
+        this(expectedSize, DEFAULT_LOADFACTOR);
+    }
+
+    public MyHashMap(int expectedSize, float loadFactor) {
+        if (expectedSize < 0 || !(loadFactor > 0))
+            throw new IllegalArgumentException();
+        this.loadFactor = loadFactor;
+        this.numberOfSlots = capacityFor(expectedSize, loadFactor);
         this.numberOfNodes = 0;
         table = (Node<K,V>[]) new Node[numberOfSlots];
     }
@@ -458,10 +410,17 @@ public class MyHashMap<K,V> implements Map<K,V> {
     public boolean containsValue(Object value) {
 
         for (Node<K,V> start : table) {
-            while (start != null) {
-                if ((value == null && start.getValue() == null) || (value != null && value.equals(start.getValue())))
+            for (Entry<K,V> entry : entriesOf(start)) {
+                if ((value == null && entry.getValue() == null) || (value != null && value.equals(entry.getValue())))
                     return true;
-                start = start.next;
+            }
+        }
+        if (oldTable != null) {
+            for (Node<K,V> start : oldTable) {
+                for (Entry<K,V> entry : entriesOf(start)) {
+                    if ((value == null && entry.getValue() == null) || (value != null && value.equals(entry.getValue())))
+                        return true;
+                }
             }
         }
         return false;
@@ -469,7 +428,7 @@ public class MyHashMap<K,V> implements Map<K,V> {
 
     @Override
     public V get(Object key) {
-        Node<K,V> node = findNodeByKey(key);
+        Entry<K,V> node = findNodeByKey(key);
         if (node != null) {
             return node.getValue();
         }
@@ -479,18 +438,34 @@ public class MyHashMap<K,V> implements Map<K,V> {
     @Override
     public V put(K key, V value) {
 
-        Node<K,V> oldNode = findNodeByKey(key);
+        rehashStep(REHASH_STEP);
+        V oldValue = putValue(key, value);
+        if (numberOfNodes > (int) (loadFactor * numberOfSlots))
+            rehash();
+        return oldValue;
+    }
+
+    // put without the threshold check
+    private V putValue(K key, V value) {
+        Entry<K,V> oldNode = findNodeByKey(key);
 
         if (oldNode == null) {
-            int slot = 0;
-            if (key != null)
-                slot = Math.abs(key.hashCode()) % numberOfSlots;
+            int hash = hashOf(key);
+            Node<K,V>[] table = tableOf(hash);
+            int slot = hash & (table.length - 1);
             Node<K, V> headNode = table[slot];
-            Node<K, V> newHeadNode = new Node<>(key, value, headNode);
-            table[slot] = newHeadNode;
+            if (headNode instanceof TreeBin) {
+                TreeBin<K,V> treeBin = (TreeBin<K,V>) headNode;
+                treeBin.root = HashTree.insert(treeBin.root, hash, key, value);
+                treeBin.count++;
+            }
+            else {
+                Node<K, V> newHeadNode = new Node<>(hash, key, value, headNode);
+                table[slot] = newHeadNode;
+                if (table.length >= MIN_TREEIFY_CAPACITY && chainLength(newHeadNode) >= TREEIFY_THRESHOLD)
+                    table[slot] = binOf(entriesOf(newHeadNode));
+            }
             numberOfNodes++;
-            if (numberOfNodes > (int) (loadFactor * numberOfSlots))
-                rehash();
             return null;
         }
 
@@ -500,22 +475,39 @@ public class MyHashMap<K,V> implements Map<K,V> {
 
     @Override
     public V remove(Object key) {
-        int slot = 0;
-        if (key != null)
-            slot = Math.abs(key.hashCode()) % numberOfSlots;
+        rehashStep(REHASH_STEP);
+        return removeNode(key);
+    }
+
+    private V removeNode(Object key) {
+        int hash = hashOf(key);
+        Node<K,V>[] table = tableOf(hash);
+        int slot = hash & (table.length - 1);
         Node<K,V> prev = table[slot];
         if (prev == null) {
             return null;
         }
 
-        if ((prev.getKey() == null && key == null) || (prev.getKey() != null && prev.getKey().equals(key))) {
+        if (prev instanceof TreeBin) {
+            TreeBin<K,V> treeBin = (TreeBin<K,V>) prev;
+            HashTree.Node<K,V> treeNode = HashTree.find(treeBin.root, hash, key);
+            if (treeNode == null)
+                return null;
+            treeBin.root = HashTree.remove(treeBin.root, hash, key);
+            if (--treeBin.count <= UNTREEIFY_THRESHOLD)
+                table[slot] = binOf(entriesOf(treeBin));
+            numberOfNodes--;
+            return treeNode.getValue();
+        }
+
+        if (prev.hash == hash && ((prev.getKey() == null && key == null) || (prev.getKey() != null && prev.getKey().equals(key)))) {
             table[slot] = prev.next;
             numberOfNodes--;
             return prev.getValue();
         }
         Node<K,V> curr = prev.next;
         while (curr != null) {
-            if ((curr.getKey() == null && key == null) || (curr.getKey() != null && curr.getKey().equals(key))) {
+            if (curr.hash == hash && ((curr.getKey() == null && key == null) || (curr.getKey() != null && curr.getKey().equals(key)))) {
                 prev.next = curr.next;
                 numberOfNodes--;
                 return curr.getValue();
@@ -526,9 +518,16 @@ public class MyHashMap<K,V> implements Map<K,V> {
         return null;
     }
 
+    // sizes the table once for all of m, the entries then go in without threshold checks
     @Override
-    public void putAll(Map m) {
-
+    public void putAll(Map<? extends K, ? extends V> m) {
+        rehashStep(Integer.MAX_VALUE);
+        long expectedSize = (long) numberOfNodes + m.size();
+        if (expectedSize > (int) (loadFactor * numberOfSlots))
+            resize(capacityFor(expectedSize, loadFactor));
+        for (Entry<? extends K, ? extends V> entry : m.entrySet()) {
+            putValue(entry.getKey(), entry.getValue());
+        }
     }
 
     @Override
@@ -552,13 +551,14 @@ public class MyHashMap<K,V> implements Map<K,V> {
     }
 
     /* helper methods */
-    private Node<K,V> findNodeByKey(Object key) {
-        int slot = 0;
-        if (key != null)
-            slot = Math.abs(key.hashCode()) % numberOfSlots;
-        Node<K,V> start = table[slot];
+    private Entry<K,V> findNodeByKey(Object key) {
+        int hash = hashOf(key);
+        Node<K,V>[] table = tableOf(hash);
+        Node<K,V> start = table[hash & (table.length - 1)];
+        if (start instanceof TreeBin)
+            return HashTree.find(((TreeBin<K,V>) start).root, hash, key);
         while (start != null) {
-            if ((key == null && start.getKey() == null) || (key != null && key.equals(start.getKey()))) {
+            if (start.hash == hash && ((key == null && start.getKey() == null) || (key != null && key.equals(start.getKey())))) {
                 return start;
             }
             start = start.next;
@@ -567,7 +567,20 @@ public class MyHashMap<K,V> implements Map<K,V> {
     }
 
     public void removeValue(V value) {
+        removeValue(table, value);
+        if (oldTable != null)
+            removeValue(oldTable, value);
+    }
+
+    private void removeValue(Node<K,V>[] table, V value) {
         for(int i=0;i<table.length;i++) {
+            if (table[i] instanceof TreeBin) {
+                for (Entry<K,V> entry : entriesOf(table[i])) {
+                    if ((value == null && entry.getValue() == null) || (value != null && value.equals(entry.getValue())))
+                        removeNode(entry.getKey());
+                }
+                continue;
+            }
             Node<K,V> prev = null;
             Node<K,V> curr = table[i];
             while(curr != null) {
@@ -577,6 +590,7 @@ public class MyHashMap<K,V> implements Map<K,V> {
                     } else {
                         prev.next = curr.next;
                     }
+                    numberOfNodes--;
                     curr = curr.next;
                     continue;
                 }
@@ -586,21 +600,157 @@ public class MyHashMap<K,V> implements Map<K,V> {
         }
     }
 
+    // starts moving the bins to a table of twice the size, the work is done a few bins at a time by rehashStep
     private void rehash() {
-        Node<K, V>[] oldTable = table;
-        table = (Node<K, V>[]) new Node[2 * numberOfSlots];
+        // a rehash still running by now has seen few puts, it is finished at once
+        rehashStep(Integer.MAX_VALUE);
 
-        numberOfNodes = 0;
+        oldTable = table;
+        rehashIndex = 0;
         numberOfSlots = numberOfSlots * 2;
-        for (Node<K,V> start: oldTable) {
-            while (start != null)
-            {
-                put(start.getKey(),start.getValue());
-                start = start.next;
+        table = (Node<K, V>[]) new Node[numberOfSlots];
+    }
+
+    // moves up to numberOfBins non empty bins of the old table, looking at no more than ten empty bins each
+    private void rehashStep(int numberOfBins) {
+        long emptyBins = 10L * numberOfBins;
+        while (oldTable != null && numberOfBins > 0 && emptyBins > 0) {
+            if (oldTable[rehashIndex] != null) {
+                moveBin(rehashIndex);
+                numberOfBins--;
+            } else {
+                emptyBins--;
             }
+            if (++rehashIndex == oldTable.length)
+                oldTable = null;
         }
     }
 
+    // bin i of the old table splits into bins i and i + old size of the new table, chain nodes are relinked
+    private void moveBin(int i) {
+        Node<K,V> start = oldTable[i];
+        int oldSize = oldTable.length;
+        oldTable[i] = null;
+
+        if (start instanceof TreeBin) {
+            List<Entry<K,V>> lowEntries = new ArrayList<>();
+            List<Entry<K,V>> highEntries = new ArrayList<>();
+            for (Entry<K,V> entry : entriesOf(start)) {
+                if ((hashOf(entry.getKey()) & oldSize) == 0)
+                    lowEntries.add(entry);
+                else
+                    highEntries.add(entry);
+            }
+            table[i] = binOf(lowEntries);
+            table[i + oldSize] = binOf(highEntries);
+            return;
+        }
+
+        Node<K,V> low = null;
+        Node<K,V> high = null;
+        while (start != null) {
+            Node<K,V> next = start.next;
+            if ((start.hash & oldSize) == 0) {
+                start.next = low;
+                low = start;
+            } else {
+                start.next = high;
+                high = start;
+            }
+            start = next;
+        }
+        table[i] = low;
+        table[i + oldSize] = high;
+    }
+
+    // moves every node to a table of newNumberOfSlots at once, no rehash may be running
+    private void resize(int newNumberOfSlots) {
+        Node<K,V>[] previousTable = table;
+        numberOfSlots = newNumberOfSlots;
+        table = (Node<K,V>[]) new Node[numberOfSlots];
+
+        for (Node<K,V> start : previousTable) {
+            if (start instanceof TreeBin) {
+                for (Entry<K,V> entry : entriesOf(start)) {
+                    int hash = hashOf(entry.getKey());
+                    int slot = hash & (numberOfSlots - 1);
+                    table[slot] = new Node<>(hash, entry.getKey(), entry.getValue(), table[slot]);
+                }
+                continue;
+            }
+            while (start != null) {
+                Node<K,V> next = start.next;
+                int slot = start.hash & (numberOfSlots - 1);
+                start.next = table[slot];
+                table[slot] = start;
+                start = next;
+            }
+        }
+        if (numberOfSlots >= MIN_TREEIFY_CAPACITY) {
+            for (int i = 0; i < numberOfSlots; i++) {
+                if (chainLength(table[i]) >= TREEIFY_THRESHOLD)
+                    table[i] = binOf(entriesOf(table[i]));
+            }
+        }
+    }
+
+    // smallest power of two table holding expectedSize entries below the load factor
+    private static int capacityFor(long expectedSize, float loadFactor) {
+        int capacity = DEFAULT_CAPACITY;
+        while (capacity < MAXIMUM_CAPACITY && (int) (loadFactor * capacity) < expectedSize)
+            capacity *= 2;
+        return capacity;
+    }
+
+    // the table holding the bin of hash, the old one while that bin is not moved yet
+    private Node<K,V>[] tableOf(int hash) {
+        if (oldTable != null && (hash & (oldTable.length - 1)) >= rehashIndex)
+            return oldTable;
+        return table;
+    }
+
+    // mixes the bits of hashCode, the slot only uses the low bits
+    private int hashOf(Object key) {
+        if (key == null)
+            return 0;
+        int h = key.hashCode() * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & 0x7fffffff;
+    }
+
+    private int chainLength(Node<K,V> start) {
+        int length = 0;
+        for (; start != null; start = start.next)
+            length++;
+        return length;
+    }
+
+    // a chain, or a TreeBin once there are more than UNTREEIFY_THRESHOLD entries
+    private Node<K,V> binOf(List<Entry<K,V>> entries) {
+        if (entries.size() > UNTREEIFY_THRESHOLD) {
+            HashTree.Node<K,V> root = null;
+            for (Entry<K,V> entry : entries) {
+                root = HashTree.insert(root, hashOf(entry.getKey()), entry.getKey(), entry.getValue());
+            }
+            return new TreeBin<>(root, entries.size());
+        }
+        Node<K,V> headNode = null;
+        for (int i = entries.size() - 1; i >= 0; i--) {
+            headNode = new Node<>(hashOf(entries.get(i).getKey()), entries.get(i).getKey(), entries.get(i).getValue(), headNode);
+        }
+        return headNode;
+    }
+
+    private List<Entry<K,V>> entriesOf(Node<K,V> start) {
+        List<Entry<K,V>> entries = new ArrayList<>();
+        if (start instanceof TreeBin) {
+            HashTree.collect(((TreeBin<K,V>) start).root, entries);
+            return entries;
+        }
+        for (; start != null; start = start.next)
+            entries.add(start);
+        return entries;
+    }
+
     /* content display method */
 
     public void display() {
@@ -608,13 +758,22 @@ public class MyHashMap<K,V> implements Map<K,V> {
         int count = 0;
         for (Node<K,V> start: table) {
             System.out.print(count + " : ");
-            while (start != null) {
-                System.out.print("(" + start.key + " " + start.value + ") ");
-                start = start.next;
+            for (Entry<K,V> entry : entriesOf(start)) {
+                System.out.print("(" + entry.getKey() + " " + entry.getValue() + ") ");
             }
             count++;
             System.out.println();
         }
+        if (oldTable != null) {
+            System.out.println("rehash in progress, old table from " + rehashIndex + " : ");
+            for (int i = rehashIndex; i < oldTable.length; i++) {
+                System.out.print(i + " : ");
+                for (Entry<K,V> entry : entriesOf(oldTable[i])) {
+                    System.out.print("(" + entry.getKey() + " " + entry.getValue() + ") ");
+                }
+                System.out.println();
+            }
+        }
     }
 
 }
@@ -0,0 +1,359 @@
+package collection_framework;
+
+import java.util.*;
+
+// MyHashMap without nodes: keys and values are stored next to each other in one array (key at 2 * slot,
+// value at 2 * slot + 1) and the mixed hash of every slot in a parallel int array.
+// collisions probe the following slots (Robin Hood: an entry further from its home slot takes the place of
+// one closer to home, so a lookup stops as soon as it is further from home than the entry it looks at),
+// and remove shifts the rest of the cluster back instead of leaving tombstones.
+public class MyOpenHashMap<K,V> implements Map<K,V> {
+
+    static private final int DEFAULT_CAPACITY = 16;
+    static private final float DEFAULT_LOADFACTOR = 0.75f;
+    // stored in place of a null key, a null key in the table marks an empty slot
+    static private final Object NULL_KEY = new Object();
+
+    private int numberOfSlots;        // table size, a power of two
+    private float loadFactor;
+    private int numberOfNodes;
+    private Object table[];
+    private int hashes[];
+
+    /* constructors */
+
+    public MyOpenHashMap() {
+        this.loadFactor = DEFAULT_LOADFACTOR;
+        allocate(DEFAULT_CAPACITY);
+    }
+
+    private void allocate(int slots) {
+        this.numberOfSlots = slots;
+        this.numberOfNodes = 0;
+        this.table = new Object[2 * slots];
+        this.hashes = new int[slots];
+    }
+
+    @Override
+    public int size() {
+        return numberOfNodes;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return (numberOfNodes == 0);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return findSlot(key) != -1;
+    }
+
+    @Override
+    public boolean containsValue(Object value) {
+        for (int slot = 0; slot < numberOfSlots; slot++) {
+            if (table[2 * slot] != null && Objects.equals(value, table[2 * slot + 1]))
+                return true;
+        }
+        return false;
+    }
+
+    @Override
+    public V get(Object key) {
+        int slot = findSlot(key);
+        return (slot == -1) ? null : (V) table[2 * slot + 1];
+    }
+
+    @Override
+    public V put(K key, V value) {
+        int slot = findSlot(key);
+        if (slot != -1) {
+            V oldValue = (V) table[2 * slot + 1];
+            table[2 * slot + 1] = value;
+            return oldValue;
+        }
+
+        insert(hashOf(key), maskNull(key), value);
+        numberOfNodes++;
+        if (numberOfNodes > (int) (loadFactor * numberOfSlots))
+            rehash();
+        return null;
+    }
+
+    @Override
+    public V remove(Object key) {
+        int slot = findSlot(key);
+        if (slot == -1)
+            return null;
+        V oldValue = (V) table[2 * slot + 1];
+        removeSlot(slot);
+        return oldValue;
+    }
+
+    @Override
+    public void putAll(Map<? extends K, ? extends V> m) {
+        for (Map.Entry<? extends K, ? extends V> entry : m.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(table, null);
+        numberOfNodes = 0;
+    }
+
+    @Override
+    public Set<K> keySet() {
+        return new AbstractSet<K>() {
+            @Override
+            public Iterator<K> iterator() {
+                return new SlotIterator<K>() {
+                    @Override
+                    K valueOf(int slot) {
+                        return unmaskNull(table[2 * slot]);
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return numberOfNodes;
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                return containsKey(o);
+            }
+        };
+    }
+
+    @Override
+    public Collection<V> values() {
+        return new AbstractCollection<V>() {
+            @Override
+            public Iterator<V> iterator() {
+                return new SlotIterator<V>() {
+                    @Override
+                    V valueOf(int slot) {
+                        return (V) table[2 * slot + 1];
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return numberOfNodes;
+            }
+        };
+    }
+
+    @Override
+    public Set<Entry<K,V>> entrySet() {
+        return new AbstractSet<Entry<K,V>>() {
+            @Override
+            public Iterator<Entry<K,V>> iterator() {
+                return new SlotIterator<Entry<K,V>>() {
+                    @Override
+                    Entry<K,V> valueOf(int slot) {
+                        return new SlotEntry(slot);
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return numberOfNodes;
+            }
+        };
+    }
+
+    /* classes for iterator */
+
+    // an entry is a view of its slot, it is only valid until the map is changed
+    private class SlotEntry implements Entry<K,V> {
+        private final int slot;
+
+        SlotEntry(int slot) {
+            this.slot = slot;
+        }
+
+        @Override
+        public K getKey() {
+            return unmaskNull(table[2 * slot]);
+        }
+
+        @Override
+        public V getValue() {
+            return (V) table[2 * slot + 1];
+        }
+
+        @Override
+        public V setValue(V value) {
+            V oldValue = (V) table[2 * slot + 1];
+            table[2 * slot + 1] = value;
+            return oldValue;
+        }
+    }
+
+    // starts right after an empty slot and goes once around the table. remove only shifts entries
+    // backwards inside their cluster and a cluster never spans an empty slot, so an entry is never
+    // moved from a visited slot to one still ahead
+    private abstract class SlotIterator<T> implements Iterator<T> {
+
+        private int start;
+        private int visited;
+        private int lastSlot = -1;
+
+        SlotIterator() {
+            int slot = 0;
+            while (table[2 * slot] != null)
+                slot++;
+            start = slot + 1;
+            skipEmptySlots();
+        }
+
+        abstract T valueOf(int slot);
+
+        private int slotAt(int offset) {
+            return (start + offset) & (numberOfSlots - 1);
+        }
+
+        private void skipEmptySlots() {
+            while (visited < numberOfSlots && table[2 * slotAt(visited)] == null)
+                visited++;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return visited < numberOfSlots;
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            lastSlot = slotAt(visited++);
+            T value = valueOf(lastSlot);
+            skipEmptySlots();
+            return value;
+        }
+
+        @Override
+        public void remove() {
+            if (lastSlot == -1)
+                throw new IllegalStateException();
+            removeSlot(lastSlot);
+            // the next entry of the cluster may have moved into the removed slot
+            if (table[2 * lastSlot] != null)
+                visited--;
+            skipEmptySlots();
+            lastSlot = -1;
+        }
+    }
+
+    /* helper methods */
+
+    // mixes the bits of hashCode, the slot only uses the low bits
+    private int hashOf(Object key) {
+        if (key == null)
+            return 0;
+        int h = key.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private Object maskNull(Object key) {
+        return (key == null) ? NULL_KEY : key;
+    }
+
+    private K unmaskNull(Object key) {
+        return (key == NULL_KEY) ? null : (K) key;
+    }
+
+    // how far the entry in slot is from the slot its hash points to
+    private int distanceFromHome(int slot) {
+        return (slot - hashes[slot]) & (numberOfSlots - 1);
+    }
+
+    private int findSlot(Object key) {
+        int hash = hashOf(key);
+        Object maskedKey = maskNull(key);
+        int mask = numberOfSlots - 1;
+        for (int slot = hash & mask, distance = 0; ; slot = (slot + 1) & mask, distance++) {
+            Object slotKey = table[2 * slot];
+            if (slotKey == null || distanceFromHome(slot) < distance)
+                return -1;
+            if (hashes[slot] == hash && (slotKey == maskedKey || slotKey.equals(maskedKey)))
+                return slot;
+        }
+    }
+
+    // key must not be in the table yet
+    private void insert(int hash, Object key, Object value) {
+        int mask = numberOfSlots - 1;
+        for (int slot = hash & mask, distance = 0; ; slot = (slot + 1) & mask, distance++) {
+            if (table[2 * slot] == null) {
+                table[2 * slot] = key;
+                table[2 * slot + 1] = value;
+                hashes[slot] = hash;
+                return;
+            }
+            // take the place of an entry closer to home and go on inserting that one
+            int slotDistance = distanceFromHome(slot);
+            if (slotDistance < distance) {
+                Object slotKey = table[2 * slot];
+                Object slotValue = table[2 * slot + 1];
+                int slotHash = hashes[slot];
+                table[2 * slot] = key;
+                table[2 * slot + 1] = value;
+                hashes[slot] = hash;
+                key = slotKey;
+                value = slotValue;
+                hash = slotHash;
+                distance = slotDistance;
+            }
+        }
+    }
+
+    // backward shift: following entries of the cluster move one slot back until one is at home or a slot is empty
+    private void removeSlot(int slot) {
+        int mask = numberOfSlots - 1;
+        int next = (slot + 1) & mask;
+        while (table[2 * next] != null && distanceFromHome(next) > 0) {
+            table[2 * slot] = table[2 * next];
+            table[2 * slot + 1] = table[2 * next + 1];
+            hashes[slot] = hashes[next];
+            slot = next;
+            next = (next + 1) & mask;
+        }
+        table[2 * slot] = null;
+        table[2 * slot + 1] = null;
+        numberOfNodes--;
+    }
+
+    private void rehash() {
+        Object[] oldTable = table;
+        int[] oldHashes = hashes;
+        int oldNumberOfSlots = numberOfSlots;
+        int oldNumberOfNodes = numberOfNodes;
+
+        allocate(2 * oldNumberOfSlots);
+        for (int slot = 0; slot < oldNumberOfSlots; slot++) {
+            if (oldTable[2 * slot] != null)
+                insert(oldHashes[slot], oldTable[2 * slot], oldTable[2 * slot + 1]);
+        }
+        numberOfNodes = oldNumberOfNodes;
+    }
+
+    /* content display method */
+
+    public void display() {
+        System.out.println("Hash Table key-value:  | size : " + size() + " | capacity : " + numberOfSlots);
+        for (int slot = 0; slot < numberOfSlots; slot++) {
+            System.out.print(slot + " : ");
+            if (table[2 * slot] != null)
+                System.out.print("(" + unmaskNull(table[2 * slot]) + " " + table[2 * slot + 1] + ") ");
+            System.out.println();
+        }
+    }
+}
@@ -0,0 +1,348 @@
+package collection_framework;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.function.BiConsumer;
+
+// MyOpenHashMap kept outside the java heap: every slot is (int hash, key bytes, value bytes) in direct
+// ByteBuffer slabs of at most 1 GB, so a map of hundreds of millions of entries adds no objects for the
+// garbage collector to trace. keys and values cross the api through fixed width serializers and keys are
+// compared by their serialized bytes. the memory is given back by close(), the map can not be used after it.
+// not thread safe
+public class OffHeapHashMap<K,V> implements AutoCloseable {
+
+    public interface Serializer<T> {
+        // number of bytes of every serialized value
+        int width();
+
+        void write(ByteBuffer buffer, int offset, T value);
+
+        T read(ByteBuffer buffer, int offset);
+    }
+
+    public static final Serializer<Long> LONG = new Serializer<Long>() {
+        @Override
+        public int width() {
+            return Long.BYTES;
+        }
+
+        @Override
+        public void write(ByteBuffer buffer, int offset, Long value) {
+            buffer.putLong(offset, value);
+        }
+
+        @Override
+        public Long read(ByteBuffer buffer, int offset) {
+            return buffer.getLong(offset);
+        }
+    };
+
+    public static final Serializer<Integer> INTEGER = new Serializer<Integer>() {
+        @Override
+        public int width() {
+            return Integer.BYTES;
+        }
+
+        @Override
+        public void write(ByteBuffer buffer, int offset, Integer value) {
+            buffer.putInt(offset, value);
+        }
+
+        @Override
+        public Integer read(ByteBuffer buffer, int offset) {
+            return buffer.getInt(offset);
+        }
+    };
+
+    static private final int DEFAULT_CAPACITY = 16;
+    static private final int MAXIMUM_CAPACITY = 1 << 30;
+    static private final float DEFAULT_LOADFACTOR = 0.75f;
+    static private final int MAXIMUM_SLAB_BYTES = 1 << 30;
+    // set in every stored hash, a slot with hash 0 is empty
+    static private final int USED = 0x80000000;
+
+    private final Serializer<K> keySerializer;
+    private final Serializer<V> valueSerializer;
+    private final int keyWidth;
+    private final int slotWidth;
+
+    private int numberOfSlots;        // a power of two
+    private float loadFactor;
+    private int numberOfNodes;
+    private ByteBuffer slabs[];
+    private int slotsPerSlabShift;
+
+    // serialized key of the current call and the entries moved by insert
+    private ByteBuffer keyBuffer;
+    private ByteBuffer carry;
+    private ByteBuffer swap;
+
+    /* constructors */
+
+    public OffHeapHashMap(Serializer<K> keySerializer, Serializer<V> valueSerializer) {
+        this(keySerializer, valueSerializer, DEFAULT_CAPACITY);
+    }
+
+    // sized for expectedSize entries, so a large table is not built by doubling
+    public OffHeapHashMap(Serializer<K> keySerializer, Serializer<V> valueSerializer, int expectedSize) {
+        this.keySerializer = keySerializer;
+        this.valueSerializer = valueSerializer;
+        this.keyWidth = keySerializer.width();
+        this.slotWidth = Integer.BYTES + keyWidth + valueSerializer.width();
+        this.loadFactor = DEFAULT_LOADFACTOR;
+        this.keyBuffer = ByteBuffer.allocate(keyWidth);
+        this.carry = ByteBuffer.allocate(slotWidth);
+        this.swap = ByteBuffer.allocate(slotWidth);
+
+        int slots = DEFAULT_CAPACITY;
+        while (slots < MAXIMUM_CAPACITY && slots * (double) loadFactor < expectedSize)
+            slots *= 2;
+        allocate(slots);
+    }
+
+    private void allocate(int slots) {
+        int slotsPerSlab = slots;
+        while ((long) slotsPerSlab * slotWidth > MAXIMUM_SLAB_BYTES)
+            slotsPerSlab /= 2;
+        numberOfSlots = slots;
+        slotsPerSlabShift = Integer.numberOfTrailingZeros(slotsPerSlab);
+        slabs = new ByteBuffer[slots / slotsPerSlab];
+        for (int i = 0; i < slabs.length; i++) {
+            // direct buffers start zeroed, so every slot is empty
+            slabs[i] = ByteBuffer.allocateDirect(slotsPerSlab * slotWidth);
+        }
+    }
+
+    public int size() {
+        return numberOfNodes;
+    }
+
+    public boolean isEmpty() {
+        return numberOfNodes == 0;
+    }
+
+    public boolean containsKey(K key) {
+        return findSlot(key) != -1;
+    }
+
+    public V get(K key) {
+        int slot = findSlot(key);
+        if (slot == -1)
+            return null;
+        return valueSerializer.read(slabOf(slot), offsetOf(slot) + Integer.BYTES + keyWidth);
+    }
+
+    public V put(K key, V value) {
+        if (value == null)
+            throw new NullPointerException();
+        int slot = findSlot(key);
+        if (slot != -1) {
+            ByteBuffer slab = slabOf(slot);
+            int valueOffset = offsetOf(slot) + Integer.BYTES + keyWidth;
+            V oldValue = valueSerializer.read(slab, valueOffset);
+            valueSerializer.write(slab, valueOffset, value);
+            return oldValue;
+        }
+
+        if (numberOfNodes == numberOfSlots - 1)
+            throw new IllegalStateException("map is full");
+
+        // findSlot left the serialized key in keyBuffer
+        carry.putInt(0, hashOf(keyBuffer));
+        carry.put(Integer.BYTES, keyBuffer, 0, keyWidth);
+        valueSerializer.write(carry, Integer.BYTES + keyWidth, value);
+        insert();
+        numberOfNodes++;
+        if (numberOfNodes > (int) (loadFactor * numberOfSlots) && numberOfSlots < MAXIMUM_CAPACITY)
+            rehash();
+        return null;
+    }
+
+    public V remove(K key) {
+        int slot = findSlot(key);
+        if (slot == -1)
+            return null;
+        V oldValue = valueSerializer.read(slabOf(slot), offsetOf(slot) + Integer.BYTES + keyWidth);
+        removeSlot(slot);
+        return oldValue;
+    }
+
+    public void clear() {
+        for (ByteBuffer slab : slabs) {
+            for (int offset = 0; offset < slab.capacity(); offset += slotWidth) {
+                slab.putInt(offset, 0);
+            }
+        }
+        numberOfNodes = 0;
+    }
+
+    // the map must not be changed by action
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        for (int slot = 0; slot < numberOfSlots; slot++) {
+            ByteBuffer slab = slabOf(slot);
+            int offset = offsetOf(slot);
+            if (slab.getInt(offset) != 0)
+                action.accept(keySerializer.read(slab, offset + Integer.BYTES),
+                        valueSerializer.read(slab, offset + Integer.BYTES + keyWidth));
+        }
+    }
+
+    @Override
+    public void close() {
+        if (slabs == null)
+            return;
+        for (ByteBuffer slab : slabs) {
+            free(slab);
+        }
+        slabs = null;
+        numberOfSlots = 0;
+        numberOfNodes = 0;
+    }
+
+    /* helper methods */
+
+    private ByteBuffer slabOf(int slot) {
+        return slabs[slot >>> slotsPerSlabShift];
+    }
+
+    private int offsetOf(int slot) {
+        return (slot & ((1 << slotsPerSlabShift) - 1)) * slotWidth;
+    }
+
+    // hash of the serialized key, with USED set
+    private int hashOf(ByteBuffer key) {
+        long h = keyWidth;
+        int i = 0;
+        for (; i + Long.BYTES <= keyWidth; i += Long.BYTES) {
+            h = (h ^ key.getLong(i)) * 0x9E3779B97F4A7C15L;
+        }
+        for (; i < keyWidth; i++) {
+            h = (h ^ key.get(i)) * 0x9E3779B97F4A7C15L;
+        }
+        return (int) (h ^ (h >>> 32)) | USED;
+    }
+
+    private int distanceFromHome(int hash, int slot) {
+        return (slot - hash) & (numberOfSlots - 1);
+    }
+
+    private boolean keyEquals(ByteBuffer slab, int keyOffset) {
+        int i = 0;
+        for (; i + Long.BYTES <= keyWidth; i += Long.BYTES) {
+            if (slab.getLong(keyOffset + i) != keyBuffer.getLong(i))
+                return false;
+        }
+        for (; i < keyWidth; i++) {
+            if (slab.get(keyOffset + i) != keyBuffer.get(i))
+                return false;
+        }
+        return true;
+    }
+
+    private int findSlot(K key) {
+        if (slabs == null)
+            throw new IllegalStateException("map is closed");
+        if (key == null)
+            throw new NullPointerException();
+        keySerializer.write(keyBuffer, 0, key);
+        int hash = hashOf(keyBuffer);
+        int mask = numberOfSlots - 1;
+        for (int slot = hash & mask, distance = 0; ; slot = (slot + 1) & mask, distance++) {
+            ByteBuffer slab = slabOf(slot);
+            int offset = offsetOf(slot);
+            int slotHash = slab.getInt(offset);
+            if (slotHash == 0 || distanceFromHome(slotHash, slot) < distance)
+                return -1;
+            if (slotHash == hash && keyEquals(slab, offset + Integer.BYTES))
+                return slot;
+        }
+    }
+
+    // robin hood insert of the entry in carry, its key must not be in the table yet
+    private void insert() {
+        int mask = numberOfSlots - 1;
+        int hash = carry.getInt(0);
+        for (int slot = hash & mask, distance = 0; ; slot = (slot + 1) & mask, distance++) {
+            ByteBuffer slab = slabOf(slot);
+            int offset = offsetOf(slot);
+            int slotHash = slab.getInt(offset);
+            if (slotHash == 0) {
+                slab.put(offset, carry, 0, slotWidth);
+                return;
+            }
+            // take the place of an entry closer to home and go on inserting that one
+            int slotDistance = distanceFromHome(slotHash, slot);
+            if (slotDistance < distance) {
+                swap.put(0, slab, offset, slotWidth);
+                slab.put(offset, carry, 0, slotWidth);
+                ByteBuffer inserted = carry;
+                carry = swap;
+                swap = inserted;
+                distance = slotDistance;
+            }
+        }
+    }
+
+    // backward shift deletion
+    private void removeSlot(int slot) {
+        int mask = numberOfSlots - 1;
+        int next = (slot + 1) & mask;
+        while (true) {
+            ByteBuffer nextSlab = slabOf(next);
+            int nextOffset = offsetOf(next);
+            int nextHash = nextSlab.getInt(nextOffset);
+            if (nextHash == 0 || distanceFromHome(nextHash, next) == 0)
+                break;
+            slabOf(slot).put(offsetOf(slot), nextSlab, nextOffset, slotWidth);
+            slot = next;
+            next = (next + 1) & mask;
+        }
+        slabOf(slot).putInt(offsetOf(slot), 0);
+        numberOfNodes--;
+    }
+
+    private void rehash() {
+        ByteBuffer[] oldSlabs = slabs;
+
+        allocate(2 * numberOfSlots);
+        for (ByteBuffer oldSlab : oldSlabs) {
+            for (int offset = 0; offset < oldSlab.capacity(); offset += slotWidth) {
+                if (oldSlab.getInt(offset) != 0) {
+                    carry.put(0, oldSlab, offset, slotWidth);
+                    insert();
+                }
+            }
+            free(oldSlab);
+        }
+    }
+
+    // direct buffers are otherwise only freed once the garbage collector finds them unreachable
+    private static void free(ByteBuffer slab) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            invokeCleaner.invoke(theUnsafe.get(null), slab);
+        }
+        catch (ReflectiveOperationException | RuntimeException e) {
+            // left to the garbage collector
+        }
+    }
+
+    /* content display method */
+
+    public void display() {
+        System.out.println("Hash Table key-value:  | size : " + size() + " | capacity : " + numberOfSlots);
+        for (int slot = 0; slot < numberOfSlots; slot++) {
+            ByteBuffer slab = slabOf(slot);
+            int offset = offsetOf(slot);
+            System.out.print(slot + " : ");
+            if (slab.getInt(offset) != 0)
+                System.out.print("(" + keySerializer.read(slab, offset + Integer.BYTES) + " "
+                        + valueSerializer.read(slab, offset + Integer.BYTES + keyWidth) + ") ");
+            System.out.println();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package collection_framework;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+// counter split over cells, threads that contend on one value move to different cells.
+// uncontended adds only touch base, cells are created on the first failed CAS and grow up to the number of cpus.
+// sum() adds base and all cells, an update is never lost so the sum is exact whenever no add is in flight.
+class StripedCounter {
+
+    // padding keeps every cell on a cache line of its own
+    private static class Cell {
+        private long p0, p1, p2, p3, p4, p5, p6;
+        private volatile long value;
+        private long q0, q1, q2, q3, q4, q5, q6;
+    }
+
+    private static final int MAXIMUM_CELLS = Integer.highestOneBit(Math.max(Runtime.getRuntime().availableProcessors(), 2) * 2 - 1);
+    private static final VarHandle CELL_VALUE;
+    // per thread cell selector, changed after a collision
+    private static final ThreadLocal<int[]> PROBE = ThreadLocal.withInitial(() -> new int[]{(int) Thread.currentThread().getId() * 0x9E3779B9 | 1});
+
+    static {
+        try {
+            CELL_VALUE = MethodHandles.lookup().findVarHandle(Cell.class, "value", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final AtomicLong base = new AtomicLong(0);
+    private volatile Cell[] cells;
+    private final AtomicBoolean cellsBusy = new AtomicBoolean(false);
+
+    void add(long x) {
+        int[] probe = null;
+        while (true) {
+            Cell[] currentCells = cells;
+            if (currentCells == null) {
+                long value = base.get();
+                if (base.compareAndSet(value, value + x))
+                    return;
+                growCells(null);
+                continue;
+            }
+
+            if (probe == null)
+                probe = PROBE.get();
+            Cell cell = currentCells[probe[0] & (currentCells.length - 1)];
+            long value = cell.value;
+            if (CELL_VALUE.compareAndSet(cell, value, value + x))
+                return;
+            // xorshift to another cell, and add cells while there are fewer than cpus
+            probe[0] ^= probe[0] << 13;
+            probe[0] ^= probe[0] >>> 17;
+            probe[0] ^= probe[0] << 5;
+            if (currentCells.length < MAXIMUM_CELLS)
+                growCells(currentCells);
+        }
+    }
+
+    long sum() {
+        long sum = base.get();
+        Cell[] currentCells = cells;
+        if (currentCells != null) {
+            for (Cell cell : currentCells) {
+                sum += cell.value;
+            }
+        }
+        return sum;
+    }
+
+    // doubles the cells unless another thread already replaced expectedCells
+    private void growCells(Cell[] expectedCells) {
+        if (!cellsBusy.compareAndSet(false, true))
+            return;
+        try {
+            if (cells != expectedCells)
+                return;
+            Cell[] newCells = new Cell[expectedCells == null ? 2 : expectedCells.length << 1];
+            int i = 0;
+            if (expectedCells != null) {
+                for (; i < expectedCells.length; i++)
+                    newCells[i] = expectedCells[i];
+            }
+            for (; i < newCells.length; i++)
+                newCells[i] = new Cell();
+            cells = newCells;
+        }
+        finally {
+            cellsBusy.set(false);
+        }
+    }
+}
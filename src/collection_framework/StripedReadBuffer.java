@@ -0,0 +1,71 @@
+package collection_framework;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+// lossy buffer for the reads of MyCache: every thread writes to a small ring of its stripe with one CAS and
+// drops the element when the ring is full or the CAS is lost, so recording a read never waits.
+// one thread at a time drains all rings (MyCache holds its eviction lock for that).
+final class StripedReadBuffer<E> {
+
+    private static final int NUMBER_OF_STRIPES = Integer.highestOneBit(Math.max(Runtime.getRuntime().availableProcessors(), 1) * 4 - 1) << 1;
+    static final int RING_SIZE = 16;
+    // per thread stripe selector, changed after a lost CAS
+    private static final ThreadLocal<int[]> PROBE = ThreadLocal.withInitial(() -> new int[]{(int) Thread.currentThread().getId() * 0x9E3779B9 | 1});
+
+    private static final class Ring<E> {
+        private long p0, p1, p2, p3, p4, p5, p6;
+        // next slot to drain, only written by the draining thread
+        private volatile long head;
+        private final AtomicLong tail = new AtomicLong();
+        private final AtomicReferenceArray<E> slots = new AtomicReferenceArray<>(RING_SIZE);
+        private long q0, q1, q2, q3, q4, q5, q6;
+    }
+
+    private final Ring<E>[] rings;
+
+    StripedReadBuffer() {
+        rings = new Ring[NUMBER_OF_STRIPES];
+        for (int i = 0; i < rings.length; i++) {
+            rings[i] = new Ring<>();
+        }
+    }
+
+    // false when the element was dropped because its ring is full, time to drain
+    boolean offer(E element) {
+        int[] probe = PROBE.get();
+        Ring<E> ring = rings[probe[0] & (rings.length - 1)];
+        long head = ring.head;
+        long tail = ring.tail.get();
+        if (tail - head >= RING_SIZE)
+            return false;
+        if (ring.tail.compareAndSet(tail, tail + 1)) {
+            ring.slots.lazySet((int) (tail & (RING_SIZE - 1)), element);
+        } else {
+            // contended stripe, move on for the next read
+            probe[0] ^= probe[0] << 13;
+            probe[0] ^= probe[0] >>> 17;
+            probe[0] ^= probe[0] << 5;
+        }
+        return true;
+    }
+
+    // hands every published element to consumer, the caller must be the only drainer
+    void drainTo(Consumer<? super E> consumer) {
+        for (Ring<E> ring : rings) {
+            long head = ring.head;
+            long tail = ring.tail.get();
+            for (; head < tail; head++) {
+                int index = (int) (head & (RING_SIZE - 1));
+                E element = ring.slots.get(index);
+                // claimed but not written yet, picked up by the next drain
+                if (element == null)
+                    break;
+                ring.slots.lazySet(index, null);
+                consumer.accept(element);
+            }
+            ring.head = head;
+        }
+    }
+}